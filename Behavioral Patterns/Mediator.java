@@ -1,7 +1,24 @@
 
 import javax.swing.*;
+import javax.swing.event.ListSelectionListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
 import javax.swing.border.LineBorder;
 
 class Mediator {
@@ -29,6 +46,22 @@ cooperate with the help of a mediator but don’t depend on each other.
     public interface Component {
         void setMediator(Mediator mediator);
         String getName();
+        void registerIn(Registry registry);
+    }
+
+
+    /**
+     * Typed registration slots. Each component calls the overload matching its
+     * own class, so the mediator never has to compare names or cast.
+     */
+    public interface Registry {
+        void register(AddButton addButton);
+        void register(DeleteButton deleteButton);
+        void register(Filter filter);
+        void register(List list);
+        void register(SaveButton saveButton);
+        void register(TextBox textBox);
+        void register(Title title);
     }
 
 
@@ -50,7 +83,12 @@ cooperate with the help of a mediator but don’t depend on each other.
 
         @Override
         protected void fireActionPerformed(ActionEvent actionEvent) {
-            mediator.addNewNote(new Note());
+            mediator.publish(new AddNoteEvent(new Note()));
+        }
+
+        @Override
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
         @Override
@@ -78,7 +116,12 @@ cooperate with the help of a mediator but don’t depend on each other.
 
         @Override
         protected void fireActionPerformed(ActionEvent actionEvent) {
-            mediator.deleteNote();
+            mediator.publish(new DeleteNoteEvent());
+        }
+
+        @Override
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
         @Override
@@ -95,7 +138,7 @@ cooperate with the help of a mediator but don’t depend on each other.
      */
     public class Filter extends JTextField implements Component {
         private Mediator mediator;
-        private ListModel listModel;
+        private ListModel<Note> listModel;
 
         public Filter() {}
 
@@ -110,7 +153,7 @@ cooperate with the help of a mediator but don’t depend on each other.
             searchElements(start);
         }
 
-        public void setList(ListModel listModel) {
+        public void setList(ListModel<Note> listModel) {
             this.listModel = listModel;
         }
 
@@ -120,13 +163,13 @@ cooperate with the help of a mediator but don’t depend on each other.
             }
 
             if (s.equals("")) {
-                mediator.setElementsList(listModel);
+                mediator.publish(new FilterEvent(listModel));
                 return;
             }
 
             ArrayList<Note> notes = new ArrayList<>();
             for (int i = 0; i < listModel.getSize(); i++) {
-                notes.add((Note) listModel.getElementAt(i));
+                notes.add(listModel.getElementAt(i));
             }
             DefaultListModel<Note> listModel = new DefaultListModel<>();
             for (Note note : notes) {
@@ -134,7 +177,12 @@ cooperate with the help of a mediator but don’t depend on each other.
                     listModel.addElement(note);
                 }
             }
-            mediator.setElementsList(listModel);
+            mediator.publish(new FilterEvent(listModel));
+        }
+
+        @Override
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
         @Override
@@ -148,18 +196,15 @@ cooperate with the help of a mediator but don’t depend on each other.
      * Concrete components don't talk with each other. They have only one
      * communication channel–sending requests to the mediator.
      */
-    @SuppressWarnings("unchecked")
-    public class List extends JList implements Component {
+    public class List extends JList<Note> implements Component {
         private Mediator mediator;
-        private final DefaultListModel LIST_MODEL;
+        private final NoteListModel LIST_MODEL;
 
-        public List(DefaultListModel listModel) {
+        public List(NoteListModel listModel) {
             super(listModel);
             this.LIST_MODEL = listModel;
             setModel(listModel);
             this.setLayoutOrientation(JList.VERTICAL);
-            Thread thread = new Thread(new Hide(this));
-            thread.start();
         }
 
         @Override
@@ -172,48 +217,41 @@ cooperate with the help of a mediator but don’t depend on each other.
             int index = LIST_MODEL.size() - 1;
             setSelectedIndex(index);
             ensureIndexIsVisible(index);
-            mediator.sendToFilter(LIST_MODEL);
+            mediator.publish(new ListChangedEvent(LIST_MODEL));
         }
 
+        /**
+         * Deletes by the selected note rather than its index, since the list
+         * may be showing a filtered copy of the model.
+         */
         public void deleteElement() {
-            int index = this.getSelectedIndex();
-            try {
-                LIST_MODEL.remove(index);
-                mediator.sendToFilter(LIST_MODEL);
-            } catch (ArrayIndexOutOfBoundsException ignored) {}
+            Note note = getCurrentElement();
+            if (note == null) {
+                return;
+            }
+            if (getModel() instanceof DefaultListModel) {
+                ((DefaultListModel<?>) getModel()).removeElement(note);
+            }
+            LIST_MODEL.remove(note);
+            mediator.publish(new ListChangedEvent(LIST_MODEL));
+        }
+
+        public NoteListModel getListModel() {
+            return LIST_MODEL;
         }
 
         public Note getCurrentElement() {
-            return (Note)getSelectedValue();
+            return getSelectedValue();
         }
 
         @Override
-        public String getName() {
-            return "List";
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
-        private class Hide implements Runnable {
-            private List list;
-
-            Hide(List list) {
-                this.list = list;
-            }
-
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        Thread.sleep(300);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                    if (list.isSelectionEmpty()) {
-                        mediator.hideElements(true);
-                    } else {
-                        mediator.hideElements(false);
-                    }
-                }
-            }
+        @Override
+        public String getName() {
+            return "List";
         }
     }
 
@@ -236,7 +274,12 @@ cooperate with the help of a mediator but don’t depend on each other.
 
         @Override
         protected void fireActionPerformed(ActionEvent actionEvent) {
-            mediator.saveChanges();
+            mediator.publish(new SaveNoteEvent());
+        }
+
+        @Override
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
         @Override
@@ -260,7 +303,12 @@ cooperate with the help of a mediator but don’t depend on each other.
 
         @Override
         protected void processComponentKeyEvent(KeyEvent keyEvent) {
-            mediator.markNote();
+            mediator.publish(new EditNoteEvent());
+        }
+
+        @Override
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
         @Override
@@ -284,7 +332,12 @@ cooperate with the help of a mediator but don’t depend on each other.
 
         @Override
         protected void processComponentKeyEvent(KeyEvent keyEvent) {
-            mediator.markNote();
+            mediator.publish(new EditNoteEvent());
+        }
+
+        @Override
+        public void registerIn(Registry registry) {
+            registry.register(this);
         }
 
         @Override
@@ -298,17 +351,128 @@ cooperate with the help of a mediator but don’t depend on each other.
      * Common mediator interface.
      */
     public interface Mediator {
-        void addNewNote(Note note);
-        void deleteNote();
-        void getInfoFromList(Note note);
-        void saveChanges();
-        void markNote();
-        void clear();
-        void sendToFilter(ListModel listModel);
-        void setElementsList(ListModel list);
         void registerComponent(Component component);
-        void hideElements(boolean flag);
+        void publish(Event event);
         void createGUI();
+        void dispose();
+    }
+
+
+    /**
+     * Everything a component can tell the mediator about, one topic per event
+     * class, so a topic and the class of its events can't disagree.
+     */
+    public enum Topic {
+        ADD_NOTE(AddNoteEvent.class),
+        DELETE_NOTE(DeleteNoteEvent.class),
+        SAVE_NOTE(SaveNoteEvent.class),
+        EDIT_NOTE(EditNoteEvent.class),
+        LIST_CHANGED(ListChangedEvent.class),
+        FILTER_LIST(FilterEvent.class);
+
+        private final Class<? extends Event> type;
+
+        Topic(Class<? extends Event> type) {
+            this.type = type;
+        }
+
+        // Resolved once per event class, not per event.
+        private static final ClassValue<Topic> BY_CLASS = new ClassValue<Topic>() {
+            @Override
+            protected Topic computeValue(Class<?> type) {
+                for (Topic topic : values()) {
+                    if (topic.type == type) {
+                        return topic;
+                    }
+                }
+                throw new IllegalArgumentException("No topic for " + type.getName());
+            }
+        };
+
+        public static Topic of(Class<? extends Event> type) {
+            return BY_CLASS.get(type);
+        }
+    }
+
+
+    /**
+     * Base class for the events components publish. The topic comes from the
+     * event's own class.
+     */
+    public abstract class Event {
+        private final Topic topic = Topic.of(getClass());
+
+        public Topic getTopic() {
+            return topic;
+        }
+    }
+
+    public class AddNoteEvent extends Event {
+        private final Note note;
+
+        public AddNoteEvent(Note note) {
+            this.note = note;
+        }
+
+        public Note getNote() {
+            return note;
+        }
+    }
+
+    public class DeleteNoteEvent extends Event {
+    }
+
+    public class SaveNoteEvent extends Event {
+    }
+
+    public class EditNoteEvent extends Event {
+    }
+
+    public class ListChangedEvent extends Event {
+        private final ListModel<Note> model;
+
+        public ListChangedEvent(ListModel<Note> model) {
+            this.model = model;
+        }
+
+        public ListModel<Note> getModel() {
+            return model;
+        }
+    }
+
+    public class FilterEvent extends Event {
+        private final ListModel<Note> model;
+
+        public FilterEvent(ListModel<Note> model) {
+            this.model = model;
+        }
+
+        public ListModel<Note> getModel() {
+            return model;
+        }
+    }
+
+
+    /**
+     * Event bus used inside the mediator. Handlers of a topic are chained into
+     * one consumer kept in an EnumMap, so publishing is an array lookup plus
+     * the calls. Subscribing rebuilds the chain, which only happens while the
+     * editor is being set up.
+     */
+    public class EventBus {
+        private final EnumMap<Topic, Consumer<Event>> handlers = new EnumMap<>(Topic.class);
+
+        public <E extends Event> void subscribe(Class<E> type, Consumer<? super E> handler) {
+            Consumer<Event> typed = event -> handler.accept(type.cast(event));
+            handlers.merge(Topic.of(type), typed, Consumer::andThen);
+        }
+
+        public void publish(Event event) {
+            Consumer<Event> handler = handlers.get(event.getTopic());
+            if (handler != null) {
+                handler.accept(event);
+            }
+        }
     }
 
     
@@ -317,7 +481,13 @@ cooperate with the help of a mediator but don’t depend on each other.
      * have been extracted to the mediator. Now components only talk with the
      * mediator, which knows who has to handle a request.
      */
-    public class Editor implements Mediator {
+    public class Editor implements Mediator, Registry {
+        // Edits arriving within one frame are folded into a single mark and repaint.
+        private static final int FRAME_MILLIS = 16;
+
+        private final NoteRepository repository;
+        private final EventBus bus = new EventBus();
+        private final Timer editFrame = new Timer(FRAME_MILLIS, actionEvent -> markNote());
         private Title title;
         private TextBox textBox;
         private AddButton add;
@@ -325,10 +495,29 @@ cooperate with the help of a mediator but don’t depend on each other.
         private SaveButton save;
         private List list;
         private Filter filter;
+        private JFrame notes;
+
+        /**
+         * Visibility is driven by selection events, so we remember the last
+         * applied state and touch the components only on actual transitions.
+         */
+        private ListSelectionListener selectionListener;
+        private Boolean elementsHidden;
 
         private JLabel titleLabel = new JLabel("Title:");
         private JLabel textLabel = new JLabel("Text:");
         private JLabel label = new JLabel("Add or select existing note to proceed...");
+
+        public Editor(NoteRepository repository) {
+            this.repository = repository;
+            editFrame.setRepeats(false);
+            bus.subscribe(AddNoteEvent.class, event -> addNewNote(event.getNote()));
+            bus.subscribe(DeleteNoteEvent.class, event -> deleteNote());
+            bus.subscribe(SaveNoteEvent.class, event -> saveChanges());
+            bus.subscribe(EditNoteEvent.class, event -> scheduleMark());
+            bus.subscribe(ListChangedEvent.class, event -> sendToFilter(event.getModel()));
+            bus.subscribe(FilterEvent.class, event -> setElementsList(event.getModel()));
+        }
     
         /**
          * Here the registration of components by the mediator.
@@ -336,71 +525,93 @@ cooperate with the help of a mediator but don’t depend on each other.
         @Override
         public void registerComponent(Component component) {
             component.setMediator(this);
-            switch (component.getName()) {
-                case "AddButton":
-                    add = (AddButton)component;
-                    break;
-                case "DelButton":
-                    del = (DeleteButton)component;
-                    break;
-                case "Filter":
-                    filter = (Filter)component;
-                    break;
-                case "List":
-                    list = (List)component;
-                    this.list.addListSelectionListener(listSelectionEvent -> {
-                        Note note = (Note)list.getSelectedValue();
-                        if (note != null) {
-                            getInfoFromList(note);
-                        } else {
-                            clear();
-                        }
-                    });
-                    break;
-                case "SaveButton":
-                    save = (SaveButton)component;
-                    break;
-                case "TextBox":
-                    textBox = (TextBox)component;
-                    break;
-                case "Title":
-                    title = (Title)component;
-                    break;
-            }
+            component.registerIn(this);
+        }
+
+        @Override
+        public void register(AddButton addButton) {
+            add = addButton;
+        }
+
+        @Override
+        public void register(DeleteButton deleteButton) {
+            del = deleteButton;
+        }
+
+        @Override
+        public void register(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public void register(List list) {
+            this.list = list;
+            selectionListener = listSelectionEvent -> {
+                Note note = list.getSelectedValue();
+                if (note != null) {
+                    getInfoFromList(note);
+                } else {
+                    clear();
+                }
+                updateVisibility();
+            };
+            this.list.addListSelectionListener(selectionListener);
+        }
+
+        @Override
+        public void register(SaveButton saveButton) {
+            save = saveButton;
+        }
+
+        @Override
+        public void register(TextBox textBox) {
+            this.textBox = textBox;
+        }
+
+        @Override
+        public void register(Title title) {
+            this.title = title;
+        }
+
+        @Override
+        public void publish(Event event) {
+            bus.publish(event);
         }
 
         /**
          * Various methods to handle requests from particular components.
          */
-        @Override
         public void addNewNote(Note note) {
             title.setText("");
             textBox.setText("");
             list.addElement(note);
         }
 
-        @Override
         public void deleteNote() {
             list.deleteElement();
         }
 
-        @Override
         public void getInfoFromList(Note note) {
             title.setText(note.getName().replace('*', ' '));
-            textBox.setText(note.getText());
+            textBox.setText(repository.loadText(note));
         }
 
-        @Override
         public void saveChanges() {
             try {
-                Note note = (Note) list.getSelectedValue();
+                Note note = list.getSelectedValue();
                 note.setName(title.getText());
                 note.setText(textBox.getText());
+                repository.save(note);
                 list.repaint();
             } catch (NullPointerException ignored) {}
         }
 
-        @Override
+        private void scheduleMark() {
+            if (!editFrame.isRunning()) {
+                editFrame.start();
+            }
+        }
+
         public void markNote() {
             try {
                 Note note = list.getCurrentElement();
@@ -412,25 +623,31 @@ cooperate with the help of a mediator but don’t depend on each other.
             } catch (NullPointerException ignored) {}
         }
 
-        @Override
         public void clear() {
             title.setText("");
             textBox.setText("");
         }
 
-        @Override
-        public void sendToFilter(ListModel listModel) {
+        public void sendToFilter(ListModel<Note> listModel) {
             filter.setList(listModel);
         }
 
-        @SuppressWarnings("unchecked")
-        @Override
-        public void setElementsList(ListModel list) {
+        public void setElementsList(ListModel<Note> list) {
             this.list.setModel(list);
             this.list.repaint();
         }
 
-        @Override
+        /**
+         * Called from selection events only, which Swing delivers on the EDT.
+         */
+        private void updateVisibility() {
+            boolean hidden = list.isSelectionEmpty();
+            if (elementsHidden == null || elementsHidden != hidden) {
+                elementsHidden = hidden;
+                hideElements(hidden);
+            }
+        }
+
         public void hideElements(boolean flag) {
             titleLabel.setVisible(!flag);
             textLabel.setVisible(!flag);
@@ -442,9 +659,15 @@ cooperate with the help of a mediator but don’t depend on each other.
 
         @Override
         public void createGUI() {
-            JFrame notes = new JFrame("Notes");
+            notes = new JFrame("Notes");
             notes.setSize(960, 600);
-            notes.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            notes.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+            notes.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent windowEvent) {
+                    dispose();
+                }
+            });
             JPanel left = new JPanel();
             left.setBorder(new LineBorder(Color.BLACK));
             left.setSize(320, 600);
@@ -456,6 +679,8 @@ cooperate with the help of a mediator but don’t depend on each other.
             filterPanel.setPreferredSize(new Dimension(280, 40));
             JPanel listPanel = new JPanel();
             list.setFixedCellWidth(260);
+            // A fixed height keeps JList from measuring every cell of a big archive.
+            list.setFixedCellHeight(18);
             listPanel.setSize(320, 470);
             JScrollPane scrollPane = new JScrollPane(list);
             scrollPane.setPreferredSize(new Dimension(275, 410));
@@ -493,8 +718,36 @@ cooperate with the help of a mediator but don’t depend on each other.
             notes.getContentPane().add(right);
             notes.setResizable(false);
             notes.setLocationRelativeTo(null);
+            // The filter only hears about later changes, so hand it the list now.
+            sendToFilter(list.getListModel());
+            updateVisibility();
             notes.setVisible(true);
         }
+
+        /**
+         * Detaches the editor from its components, so nothing keeps a disposed
+         * editor alive.
+         */
+        @Override
+        public void dispose() {
+            editFrame.stop();
+            if (list != null && selectionListener != null) {
+                list.removeListSelectionListener(selectionListener);
+                selectionListener = null;
+            }
+            if (notes != null) {
+                notes.dispose();
+                notes = null;
+                // Compaction can rewrite the whole archive, so it runs on its own
+                // thread, which the JVM waits for before exiting.
+                new Thread(() -> {
+                    if (repository.needsCompaction()) {
+                        repository.compact();
+                    }
+                    repository.close();
+                }, "note-repository-close").start();
+            }
+        }
     }
 
 
@@ -506,6 +759,12 @@ cooperate with the help of a mediator but don’t depend on each other.
         private String name;
         private String text;
 
+        // Where the latest stored version lives, -1 until the note is stored.
+        private int id = -1;
+        private long recordStart;
+        private long textOffset;
+        private int textLength;
+
         public Note() {
             name = "New note";
         }
@@ -533,19 +792,467 @@ cooperate with the help of a mediator but don’t depend on each other.
     }
 
 
+    /**
+     * Note storage backed by a single append-only file. Every save appends a
+     * new record and a delete appends a tombstone, so nothing is ever
+     * rewritten in place:
+     *
+     *   [int id][int nameLength][int textLength][name bytes][text bytes]
+     *
+     * Next to it lives an index with where the latest version of each note
+     * starts, in list order:
+     *
+     *   [int magic][long archive size][int next id][long garbage][int count][long start]...
+     *
+     * Opening reads just the index; a note's name is read when the list
+     * first asks for it and its text when the note gets selected. The index
+     * is written on close and only trusted while the archive still has the
+     * size it records, otherwise the archive is scanned once to rebuild it.
+     * Superseded versions and tombstones stay in the archive until compact()
+     * rewrites it.
+     */
+    public class NoteRepository implements Closeable {
+        private static final int HEADER_SIZE = 12;
+        private static final int DELETED = -1;
+        private static final int SCAN_BUFFER = 1 << 20;
+        private static final int INDEX_MAGIC = 0x4E4F5445;
+        private static final int INDEX_HEADER = 28;
+
+        private final File file;
+        private final File indexFile;
+        private FileChannel channel;
+        // Record start of each listed note, and the note once it has been read.
+        private long[] starts = new long[16];
+        private Note[] loaded = new Note[16];
+        private int count;
+        private int nextId;
+        // Bytes taken by superseded versions and tombstones.
+        private long garbage;
+
+        public NoteRepository(File file) {
+            this.file = file;
+            this.indexFile = new File(file.getPath() + ".idx");
+            try {
+                channel = open(file);
+                if (!readIndex()) {
+                    scan();
+                    writeIndex();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private boolean readIndex() throws IOException {
+            if (!indexFile.isFile()) {
+                return false;
+            }
+            try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                if (index.size() < INDEX_HEADER) {
+                    return false;
+                }
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+                readFully(index, header, 0);
+                header.flip();
+                if (header.getInt() != INDEX_MAGIC || header.getLong() != channel.size()) {
+                    return false;
+                }
+                int next = header.getInt();
+                long dead = header.getLong();
+                int size = header.getInt();
+                if (size < 0 || index.size() != INDEX_HEADER + 8L * size) {
+                    return false;
+                }
+                ByteBuffer entries = ByteBuffer.allocate(8 * size);
+                readFully(index, entries, INDEX_HEADER);
+                entries.flip();
+                starts = new long[Math.max(16, size)];
+                entries.asLongBuffer().get(starts, 0, size);
+                loaded = new Note[starts.length];
+                count = size;
+                nextId = next;
+                garbage = dead;
+                return true;
+            }
+        }
+
+        private void writeIndex() throws IOException {
+            ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER + 8 * count);
+            index.putInt(INDEX_MAGIC).putLong(channel.size()).putInt(nextId).putLong(garbage).putInt(count);
+            for (int i = 0; i < count; i++) {
+                index.putLong(start(i));
+            }
+            index.flip();
+            File temp = new File(indexFile.getPath() + ".tmp");
+            try (FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (index.hasRemaining()) {
+                    target.write(index);
+                }
+            }
+            Files.move(temp.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private long start(int index) {
+            return loaded[index] != null ? loaded[index].recordStart : starts[index];
+        }
+
+        private void addEntry(long start, Note note) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                loaded = Arrays.copyOf(loaded, count * 2);
+            }
+            starts[count] = start;
+            loaded[count] = note;
+            count++;
+        }
+
+        private FileChannel open(File file) throws IOException {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private void scan() throws IOException {
+            LinkedHashMap<Integer, Note> index = new LinkedHashMap<>();
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER);
+            long bufferStart = 0;
+            buffer.limit(0);
+            long position = 0;
+            long size = channel.size();
+            while (position + HEADER_SIZE <= size) {
+                // Refill only when the header and name are not buffered yet;
+                // large texts are skipped without being read.
+                if (position < bufferStart || position + HEADER_SIZE > bufferStart + buffer.limit()) {
+                    bufferStart = fill(buffer, position);
+                }
+                buffer.position((int) (position - bufferStart));
+                int id = buffer.getInt();
+                int nameLength = buffer.getInt();
+                int textLength = buffer.getInt();
+                long textOffset = position + HEADER_SIZE + nameLength;
+                long end = textOffset + Math.max(textLength, 0);
+                if (nameLength < 0 || end > size) {
+                    break;
+                }
+                nextId = Math.max(nextId, id + 1);
+                Note previous = index.get(id);
+                if (previous != null) {
+                    garbage += recordLength(previous);
+                }
+                if (textLength == DELETED) {
+                    index.remove(id);
+                    garbage += end - position;
+                } else {
+                    byte[] name = new byte[nameLength];
+                    if (textOffset > bufferStart + buffer.limit()) {
+                        if (nameLength > buffer.capacity()) {
+                            ByteBuffer large = ByteBuffer.wrap(name);
+                            readFully(channel, large, position + HEADER_SIZE);
+                            buffer.limit(0);
+                        } else {
+                            bufferStart = fill(buffer, position + HEADER_SIZE);
+                            buffer.get(name);
+                        }
+                    } else {
+                        buffer.get(name);
+                    }
+                    Note note = previous != null ? previous : new Note();
+                    note.id = id;
+                    note.name = new String(name, StandardCharsets.UTF_8);
+                    note.recordStart = position;
+                    note.textOffset = textOffset;
+                    note.textLength = textLength;
+                    index.put(id, note);
+                }
+                position = end;
+            }
+            // Drop a record torn by a crash in the middle of an append.
+            if (position < size) {
+                channel.truncate(position);
+            }
+            for (Note note : index.values()) {
+                addEntry(note.recordStart, note);
+            }
+        }
+
+        /**
+         * Reads as much of the file from position on as fits the buffer and
+         * returns position, the file offset the buffer now starts at.
+         */
+        private long fill(ByteBuffer buffer, long position) throws IOException {
+            buffer.clear();
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            buffer.flip();
+            return position;
+        }
+
+        private long recordLength(Note note) {
+            return note.textOffset + note.textLength - note.recordStart;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Reads the note's name on first access; the text stays on disk.
+         */
+        public Note get(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+            }
+            Note note = loaded[index];
+            if (note == null) {
+                ByteBuffer header = ByteBuffer.wrap(read(starts[index], HEADER_SIZE));
+                note = new Note();
+                note.id = header.getInt();
+                int nameLength = header.getInt();
+                note.name = new String(read(starts[index] + HEADER_SIZE, nameLength), StandardCharsets.UTF_8);
+                note.recordStart = starts[index];
+                note.textOffset = starts[index] + HEADER_SIZE + nameLength;
+                note.textLength = header.getInt();
+                loaded[index] = note;
+            }
+            return note;
+        }
+
+        public int indexOf(Note note) {
+            for (int i = 0; i < count; i++) {
+                if (loaded[i] == note) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public void add(Note note) {
+            save(note);
+            addEntry(note.recordStart, note);
+        }
+
+        public void remove(Note note) {
+            int index = indexOf(note);
+            if (index != -1) {
+                System.arraycopy(starts, index + 1, starts, index, count - index - 1);
+                System.arraycopy(loaded, index + 1, loaded, index, count - index - 1);
+                loaded[--count] = null;
+            }
+            if (note.id != -1) {
+                append(note.id, new byte[0], DELETED, new byte[0]);
+                garbage += recordLength(note) + HEADER_SIZE;
+            }
+        }
+
+        /**
+         * Appends the current version of the note. Its text is dropped from
+         * memory afterwards and read back from the file when needed.
+         */
+        public void save(Note note) {
+            if (note.id == -1) {
+                note.id = nextId++;
+            } else {
+                garbage += recordLength(note);
+            }
+            byte[] name = note.name.getBytes(StandardCharsets.UTF_8);
+            byte[] text = loadText(note).getBytes(StandardCharsets.UTF_8);
+            long position = append(note.id, name, text.length, text);
+            note.recordStart = position;
+            note.textOffset = position + HEADER_SIZE + name.length;
+            note.textLength = text.length;
+            note.text = null;
+        }
+
+        /**
+         * Returns unsaved text if the note has any, otherwise reads the stored
+         * version without keeping it around.
+         */
+        public String loadText(Note note) {
+            if (note.text != null) {
+                return note.text;
+            }
+            if (note.id == -1) {
+                return "";
+            }
+            return new String(read(note.textOffset, note.textLength), StandardCharsets.UTF_8);
+        }
+
+        private byte[] read(long position, int length) {
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            try {
+                readFully(channel, bytes, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.array();
+        }
+
+        public boolean needsCompaction() {
+            try {
+                return garbage > channel.size() / 2;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Rewrites the archive with only the latest stored version of each
+         * note and writes a fresh index. Unsaved names and text stay in memory
+         * and are not written. Copies every live record, so keep it off the
+         * EDT. If anything fails the old archive stays in use.
+         */
+        public void compact() {
+            File compacted = new File(file.getPath() + ".compact");
+            // New record starts, applied only once the rewritten file is in place.
+            long[] moved = new long[count];
+            try {
+                try (FileChannel target = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long position = 0;
+                    for (int i = 0; i < count; i++) {
+                        long start = start(i);
+                        ByteBuffer header = ByteBuffer.wrap(read(start, HEADER_SIZE));
+                        header.getInt();
+                        long length = HEADER_SIZE + header.getInt() + header.getInt();
+                        moved[i] = position;
+                        for (long copied = 0; copied < length; ) {
+                            copied += channel.transferTo(start + copied, length - copied, target);
+                        }
+                        position += length;
+                    }
+                    target.force(true);
+                }
+                try {
+                    channel.close();
+                    Files.move(compacted.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    // Whichever archive is in place now, keep the repository usable.
+                    channel = open(file);
+                }
+            } catch (IOException e) {
+                compacted.delete();
+                throw new UncheckedIOException(e);
+            }
+            for (int i = 0; i < count; i++) {
+                Note note = loaded[i];
+                if (note != null) {
+                    note.textOffset += moved[i] - note.recordStart;
+                    note.recordStart = moved[i];
+                }
+                starts[i] = moved[i];
+            }
+            garbage = 0;
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long append(int id, byte[] name, int textLength, byte[] text) {
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + name.length + text.length);
+            record.putInt(id).putInt(name.length).putInt(textLength).put(name).put(text);
+            record.flip();
+            try {
+                long position = channel.size();
+                long offset = position;
+                while (record.hasRemaining()) {
+                    offset += channel.write(record, offset);
+                }
+                return position;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void readFully(FileChannel from, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = from.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of note archive");
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Writes the index and closes the archive.
+         */
+        @Override
+        public void close() {
+            try {
+                writeIndex();
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    /**
+     * List model that reads straight from the repository, so the list never
+     * copies the notes and never touches their text.
+     */
+    public class NoteListModel extends AbstractListModel<Note> {
+        private final NoteRepository repository;
+
+        public NoteListModel(NoteRepository repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public int getSize() {
+            return repository.size();
+        }
+
+        @Override
+        public Note getElementAt(int index) {
+            return repository.get(index);
+        }
+
+        public int size() {
+            return repository.size();
+        }
+
+        public void addElement(Note note) {
+            repository.add(note);
+            int index = repository.size() - 1;
+            fireIntervalAdded(this, index, index);
+        }
+
+        public void remove(Note note) {
+            int index = repository.indexOf(note);
+            if (index != -1) {
+                repository.remove(note);
+                fireIntervalRemoved(this, index, index);
+            }
+        }
+    }
+
+
         /**
      * Demo class. Everything comes together here.
      */
     public class Demo {
         public static void main(String[] args) {
-            Mediator mediator = new Editor();
+            NoteRepository repository = new NoteRepository(new File("notes.db"));
+            Mediator mediator = new Editor(repository);
 
             mediator.registerComponent(new Title());
             mediator.registerComponent(new TextBox());
             mediator.registerComponent(new AddButton());
             mediator.registerComponent(new DeleteButton());
             mediator.registerComponent(new SaveButton());
-            mediator.registerComponent(new List(new DefaultListModel()));
+            mediator.registerComponent(new List(new NoteListModel(repository)));
             mediator.registerComponent(new Filter());
 
             mediator.createGUI();
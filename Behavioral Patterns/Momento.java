@@ -1,13 +1,30 @@
 import javax.swing.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.border.Border;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
-public class Momento {
+public class Momento implements Serializable {
+
+    // Keyframes still being encoded; see SceneSnapshot.
+    private transient volatile SceneSnapshot[] snapshots = new SceneSnapshot[0];
     
     /*
      * Memento is a behavioral design pattern that lets
@@ -45,6 +62,13 @@ This is crucial for redoing undone commands.
         private Canvas canvas;
         private CompoundShape allShapes = new CompoundShape();
         private History history;
+        private final ShapeCodec codec = new ShapeCodec();
+        // Encodes mementos off the EDT, one at a time and in push order.
+        private final ExecutorService encoder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "memento-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
     
         public Editor() {
             canvas = new Canvas(this);
@@ -62,9 +86,23 @@ This is crucial for redoing undone commands.
         }
     
         public void execute(Command c) {
-            history.push(c, new Memento(this));
+            history.push(c, createMemento());
             c.execute();
         }
+
+        /**
+         * Commands only touch selected shapes, so usually it is enough to
+         * remember those. A full snapshot is taken only when the command
+         * touches most of the scene anyway; history restores entries strictly
+         * in order, so deltas never need a keyframe to replay from.
+         */
+        private Memento createMemento() {
+            int[] selected = allShapes.getSelectedIndices();
+            if (selected.length * 2 > allShapes.getChildren().size()) {
+                return new Memento(this);
+            }
+            return new Memento(this, selected);
+        }
     
         public void undo() {
             if (history.undo())
@@ -76,35 +114,56 @@ This is crucial for redoing undone commands.
                 canvas.repaint();
         }
     
-        public String backup() {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(baos);
-                oos.writeObject(this.allShapes);
-                oos.close();
-                return Base64.getEncoder().encodeToString(baos.toByteArray());
-            } catch (IOException e) {
-                return "";
-            }
+        public byte[] backup() {
+            return codec.encode(this.allShapes);
         }
     
-        public void restore(String state) {
-            try {
-                byte[] data = Base64.getDecoder().decode(state);
-                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-                this.allShapes = (CompoundShape) ois.readObject();
-                ois.close();
-            } catch (ClassNotFoundException e) {
-                System.out.print("ClassNotFoundException occurred.");
-            } catch (IOException e) {
-                System.out.print("IOException occurred.");
+        public void restore(byte[] state) {
+            this.allShapes = codec.decode(state);
+        }
+
+        /**
+         * The shape must be a private copy: it is encoded on the background
+         * thread while the editor keeps changing the live scene.
+         */
+        public CompletableFuture<byte[]> backupAsync(Shape copy) {
+            return CompletableFuture.supplyAsync(() -> codec.encode(copy), encoder);
+        }
+
+        public CompletableFuture<byte[]> backupAsync(SceneSnapshot snapshot) {
+            return CompletableFuture.supplyAsync(() -> codec.encode(snapshot.resolve()), encoder);
+        }
+
+        public CompletableFuture<byte[][]> backupAsync(Shape[] copies) {
+            return CompletableFuture.supplyAsync(() -> {
+                byte[][] encoded = new byte[copies.length][];
+                for (int i = 0; i < copies.length; i++) {
+                    encoded[i] = codec.encode(copies[i]);
+                }
+                return encoded;
+            }, encoder);
+        }
+
+        public void restore(int[] indices, byte[][] children) {
+            allShapes.unSelect();
+            for (int i = 0; i < indices.length; i++) {
+                allShapes.set(indices[i], codec.decodeShape(children[i]));
             }
         }
+
+        /**
+         * Stops the encoder and deletes the history spill file.
+         */
+        public void close() {
+            encoder.shutdownNow();
+            history.close();
+        }
     }
 
     class Canvas extends java.awt.Canvas {
         private Editor editor;
         private JFrame frame;
+        private final BackBuffer backBuffer = new BackBuffer();
         private static final int PADDING = 10;
     
         Canvas(Editor editor) {
@@ -118,6 +177,12 @@ This is crucial for redoing undone commands.
         private void createFrame() {
             frame = new JFrame();
             frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    editor.close();
+                }
+            });
             frame.setLocationRelativeTo(null);
     
             JPanel contentPanel = new JPanel();
@@ -216,8 +281,11 @@ This is crucial for redoing undone commands.
                     moveCommand = new MoveCommand(editor);
                     moveCommand.start(e.getX(), e.getY());
                 }
+                // Only the area the selection left and the area it moved to change.
+                java.awt.Rectangle before = selectionBounds();
                 moveCommand.move(e.getX(), e.getY());
-                repaint();
+                java.awt.Rectangle dirty = before.union(selectionBounds());
+                repaint(dirty.x, dirty.y, dirty.width, dirty.height);
             }
 
             @Override
@@ -253,18 +321,1709 @@ This is crucial for redoing undone commands.
         paint(g);
     }
 
-    public void paint(Graphics graphics) {
-        BufferedImage buffer = new BufferedImage(this.getWidth(), this.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics2D ig2 = buffer.createGraphics();
-        ig2.setBackground(Color.WHITE);
-        ig2.clearRect(0, 0, this.getWidth(), this.getHeight());
-
-        editor.getShapes().paint(buffer.getGraphics());
+    private java.awt.Rectangle selectionBounds() {
+        java.awt.Rectangle bounds = null;
+        for (Shape shape : editor.getShapes().getSelected()) {
+            java.awt.Rectangle shapeBounds = BackBuffer.paintBounds(shape);
+            bounds = bounds == null ? shapeBounds : bounds.union(shapeBounds);
+        }
+        return bounds == null ? new java.awt.Rectangle() : bounds;
+    }
 
+    public void paint(Graphics graphics) {
+        BufferedImage buffer = backBuffer.render(editor.getShapes(), getWidth(), getHeight(),
+                graphics.getClipBounds());
         graphics.drawImage(buffer, 0, 0, null);
     }
 }
 
 
+    /**
+     * Off-screen image the canvas paints into. It is kept between frames and
+     * only reallocated when the canvas outgrows it. Each render redraws just
+     * the dirty region, skipping top-level shapes that don't intersect it.
+     */
+    class BackBuffer {
+        // Selection outlines and dots reach slightly past the shape bounds.
+        private static final int OUTLINE = 2;
+
+        private BufferedImage image;
+
+        BufferedImage render(CompoundShape scene, int width, int height, java.awt.Rectangle dirty) {
+            if (image == null || image.getWidth() < width || image.getHeight() < height) {
+                image = new BufferedImage(Math.max(width, 1), Math.max(height, 1), BufferedImage.TYPE_INT_RGB);
+                dirty = null;
+            }
+            if (dirty == null) {
+                dirty = new java.awt.Rectangle(0, 0, width, height);
+            }
+            Graphics2D ig2 = image.createGraphics();
+            ig2.setClip(dirty);
+            ig2.setBackground(Color.WHITE);
+            ig2.clearRect(dirty.x, dirty.y, dirty.width, dirty.height);
+            java.awt.Rectangle area = new java.awt.Rectangle(dirty);
+            area.grow(OUTLINE, OUTLINE);
+            for (Shape shape : scene.getChildrenIn(area)) {
+                shape.paint(ig2);
+            }
+            ig2.dispose();
+            return image;
+        }
+
+        static java.awt.Rectangle paintBounds(Shape shape) {
+            return new java.awt.Rectangle(shape.getX() - OUTLINE, shape.getY() - OUTLINE,
+                    shape.getWidth() + 2 * OUTLINE, shape.getHeight() + 2 * OUTLINE);
+        }
+    }
+
+
+    /**
+     * Either a keyframe holding the whole scene, or the state of just the
+     * top-level shapes a command is about to change. The latter is enough
+     * because history undoes and redoes commands strictly in order, so every
+     * other shape is already in the right state when it gets restored.
+     *
+     * A delta copies the shapes it needs and a keyframe only takes a
+     * snapshot of the scene; encoding finishes on the editor's background
+     * thread. Restoring an entry that is still being
+     * encoded waits for it. Old mementos can be spilled to disk, after which
+     * they hold nothing but their record number.
+     */
+    public class Memento {
+        private CompletableFuture<byte[]> backup;
+        private int[] indices;
+        private CompletableFuture<byte[][]> children;
+        private final boolean keyframe;
+        private HistorySpill spill;
+        private int record;
+        private Editor editor;
+
+        /**
+         * Shares the scene's shapes rather than copying them; the encoder
+         * copies them off the EDT, see SceneSnapshot.
+         */
+        public Memento(Editor editor) {
+            this.editor = editor;
+            this.keyframe = true;
+            this.backup = editor.backupAsync(new SceneSnapshot(editor.getShapes()));
+        }
+
+        public Memento(Editor editor, int[] indices) {
+            this.editor = editor;
+            this.keyframe = false;
+            this.indices = indices;
+            Shape[] copies = new Shape[indices.length];
+            List<Shape> shapes = editor.getShapes().getChildren();
+            for (int i = 0; i < indices.length; i++) {
+                copies[i] = shapes.get(indices[i]).copy();
+            }
+            this.children = editor.backupAsync(copies);
+        }
+
+        public void restore() {
+            if (spill != null) {
+                restoreSpilled(spill.read(record));
+            } else if (keyframe) {
+                editor.restore(backup.join());
+            } else {
+                editor.restore(indices, children.join());
+            }
+        }
+
+        public boolean isKeyframe() {
+            return keyframe;
+        }
+
+        public boolean isDone() {
+            if (spill != null) {
+                return true;
+            }
+            return keyframe ? backup.isDone() : children.isDone();
+        }
+
+        /**
+         * Moves the encoded state into the spill file. Deltas are packed as
+         * [varint count] then [varint index][varint length][bytes] per child.
+         */
+        void spillTo(HistorySpill spill) {
+            byte[] data;
+            if (keyframe) {
+                data = backup.join();
+            } else {
+                byte[][] encoded = children.join();
+                ByteWriter out = new ByteWriter();
+                out.writeVarInt(indices.length);
+                for (int i = 0; i < indices.length; i++) {
+                    out.writeVarInt(indices[i]);
+                    out.writeVarInt(encoded[i].length);
+                    out.writeBytes(encoded[i]);
+                }
+                data = out.toByteArray();
+            }
+            this.record = spill.write(data);
+            this.spill = spill;
+            this.backup = null;
+            this.indices = null;
+            this.children = null;
+        }
+
+        private void restoreSpilled(byte[] data) {
+            if (keyframe) {
+                editor.restore(data);
+                return;
+            }
+            ByteReader in = new ByteReader(data);
+            int[] indices = new int[in.readVarInt()];
+            byte[][] encoded = new byte[indices.length][];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = in.readVarInt();
+                encoded[i] = in.readBytes(in.readVarInt());
+            }
+            editor.restore(indices, encoded);
+        }
+
+        /**
+         * Encoded size in bytes held in memory, zero once spilled. Waits if
+         * the memento is still being encoded.
+         */
+        public long size() {
+            if (spill != null) {
+                return 0;
+            }
+            if (keyframe) {
+                return backup.join().length;
+            }
+            long size = indices.length * 4L;
+            for (byte[] child : children.join()) {
+                size += child.length;
+            }
+            return size;
+        }
+    }
+
+
+    /**
+     * The top-level shapes of a scene at the time a keyframe was taken,
+     * shared with the live scene instead of copied. The encoder copies them
+     * one at a time off the EDT. A shape that is about to change before its
+     * turn is copied by the changing thread first, so the keyframe always
+     * sees the shapes as they were.
+     */
+    class SceneSnapshot {
+        private final CompoundShape root;
+        private final boolean rootSelected;
+        private final Shape[] shapes;
+        private final Shape[] copies;
+        // Position of each shape in shapes, built when first needed.
+        private IdentityHashMap<Shape, Integer> positions;
+        private boolean resolved;
+
+        SceneSnapshot(CompoundShape root) {
+            this.root = root;
+            this.rootSelected = root.isSelected();
+            this.shapes = root.getChildren().toArray(new Shape[0]);
+            this.copies = new Shape[shapes.length];
+            share(this);
+        }
+
+        /**
+         * Called before the shape changes. Copies its top-level ancestor if
+         * that belongs to the snapshot and hasn't been copied yet.
+         */
+        void preserve(BaseShape shape) {
+            BaseShape top = shape;
+            while (top.parent != root) {
+                if (top.parent == null) {
+                    return;
+                }
+                top = top.parent;
+            }
+            synchronized (this) {
+                if (resolved) {
+                    return;
+                }
+                if (positions == null) {
+                    positions = new IdentityHashMap<>(shapes.length * 2);
+                    for (int i = 0; i < shapes.length; i++) {
+                        positions.put(shapes[i], i);
+                    }
+                }
+                Integer position = positions.get(top);
+                if (position != null && copies[position] == null) {
+                    copies[position] = top.copy();
+                }
+            }
+        }
+
+        /**
+         * Returns the scene as it was, made of private copies. Runs on the
+         * encoder thread.
+         */
+        CompoundShape resolve() {
+            for (int i = 0; i < shapes.length; i++) {
+                synchronized (this) {
+                    if (copies[i] == null) {
+                        copies[i] = shapes[i].copy();
+                    }
+                }
+            }
+            synchronized (this) {
+                resolved = true;
+                positions = null;
+            }
+            release(this);
+            CompoundShape scene = new CompoundShape(copies);
+            if (rootSelected) {
+                scene.select();
+            }
+            return scene;
+        }
+    }
+
+    private synchronized void share(SceneSnapshot snapshot) {
+        SceneSnapshot[] grown = Arrays.copyOf(snapshots, snapshots.length + 1);
+        grown[snapshots.length] = snapshot;
+        snapshots = grown;
+    }
+
+    private synchronized void release(SceneSnapshot snapshot) {
+        List<SceneSnapshot> remaining = new ArrayList<>(Arrays.asList(snapshots));
+        remaining.remove(snapshot);
+        snapshots = remaining.toArray(new SceneSnapshot[0]);
+    }
+
+    // Every change to a shape goes through here first.
+    void beforeChange(BaseShape shape) {
+        SceneSnapshot[] active = snapshots;
+        // Null in a Momento that came back from Java serialization.
+        if (active == null) {
+            return;
+        }
+        for (SceneSnapshot snapshot : active) {
+            snapshot.preserve(shape);
+        }
+    }
+
+
+    /**
+     * Keeps mementos within a memory budget by spilling the oldest entries to
+     * a segment file. Entries count towards the budget once their encoding
+     * has finished.
+     *
+     * The list is laid out as [spilled | in memory, accounted | encoding].
+     */
+    public class History {
+        private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+        private List<Pair> history = new ArrayList<>();
+        private int virtualSize = 0;
+        private final long budget;
+        private long bytes = 0;
+        private HistorySpill spill;
+        // Entries below this index live in the spill file.
+        private int spilled = 0;
+        // Entries below this index are spilled or included in bytes.
+        private int accounted = 0;
+
+        public History() {
+            this(DEFAULT_BUDGET);
+        }
+
+        public History(long budget) {
+            this.budget = budget;
+        }
+
+        private class Pair {
+            Command command;
+            Memento memento;
+
+            Pair(Command c, Memento m) {
+                command = c;
+                memento = m;
+            }
+
+            private Command getCommand() {
+                return command;
+            }
+
+            private Memento getMemento() {
+                return memento;
+            }
+        }
+
+        public void push(Command c, Memento m) {
+            if (virtualSize != history.size()) {
+                for (int i = virtualSize; i < accounted; i++) {
+                    bytes -= history.get(i).getMemento().size();
+                }
+                spilled = Math.min(spilled, virtualSize);
+                accounted = Math.min(accounted, virtualSize);
+                if (spill != null) {
+                    spill.truncate(spilled);
+                }
+                history = new ArrayList<>(history.subList(0, virtualSize));
+            }
+            history.add(new Pair(c, m));
+            virtualSize = history.size();
+            account();
+            evict();
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public void close() {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+        }
+
+        private void account() {
+            while (accounted < history.size() && history.get(accounted).getMemento().isDone()) {
+                bytes += history.get(accounted).getMemento().size();
+                accounted++;
+            }
+        }
+
+        private void evict() {
+            while (bytes > budget && spilled < accounted) {
+                if (spill == null) {
+                    spill = new HistorySpill();
+                }
+                Memento oldest = history.get(spilled++).getMemento();
+                bytes -= oldest.size();
+                oldest.spillTo(spill);
+            }
+        }
+
+        public boolean undo() {
+            Pair pair = getUndo();
+            if (pair == null) {
+                return false;
+            }
+            System.out.println("Undoing: " + pair.getCommand().getName());
+            pair.getMemento().restore();
+            return true;
+        }
+
+        public boolean redo() {
+            Pair pair = getRedo();
+            if (pair == null) {
+                return false;
+            }
+            System.out.println("Redoing: " + pair.getCommand().getName());
+            pair.getMemento().restore();
+            pair.getCommand().execute();
+            return true;
+        }
+
+        private Pair getUndo() {
+            if (virtualSize == 0) {
+                return null;
+            }
+            virtualSize = Math.max(0, virtualSize - 1);
+            return history.get(virtualSize);
+        }
+
+        private Pair getRedo() {
+            if (virtualSize == history.size()) {
+                return null;
+            }
+            virtualSize = Math.min(history.size(), virtualSize + 1);
+            return history.get(virtualSize - 1);
+        }
+    }
+
+
+    public interface Command {
+        String getName();
+        void execute();
+    }
+
+    public class ColorCommand implements Command {
+        private Editor editor;
+        private Color color;
+
+        public ColorCommand(Editor editor, Color color) {
+            this.editor = editor;
+            this.color = color;
+        }
+
+        @Override
+        public String getName() {
+            return "Colorize: " + color.toString();
+        }
+
+        @Override
+        public void execute() {
+            for (Shape child : editor.getShapes().getSelected()) {
+                child.setColor(color);
+            }
+        }
+    }
+
+    public class MoveCommand implements Command {
+        private Editor editor;
+        private int startX, startY;
+        private int endX, endY;
+
+        public MoveCommand(Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public String getName() {
+            return "Move by X:" + (endX - startX) + " Y:" + (endY - startY);
+        }
+
+        public void start(int x, int y) {
+            startX = x;
+            startY = y;
+            for (Shape child : editor.getShapes().getSelected()) {
+                child.drag();
+            }
+        }
+
+        public void move(int x, int y) {
+            for (Shape child : editor.getShapes().getSelected()) {
+                child.moveTo(x - startX, y - startY);
+            }
+        }
+
+        public void stop(int x, int y) {
+            endX = x;
+            endY = y;
+            for (Shape child : editor.getShapes().getSelected()) {
+                child.drop();
+            }
+        }
+
+        @Override
+        public void execute() {
+            for (Shape child : editor.getShapes().getSelected()) {
+                child.moveBy(endX - startX, endY - startY);
+            }
+        }
+    }
+
+
+    public interface Shape extends Serializable {
+        int getX();
+        int getY();
+        int getWidth();
+        int getHeight();
+        void drag();
+        void drop();
+        void moveTo(int x, int y);
+        void moveBy(int x, int y);
+        boolean isInsideBounds(int x, int y);
+        Color getColor();
+        void setColor(Color color);
+        void select();
+        void unSelect();
+        boolean isSelected();
+        void paint(Graphics graphics);
+        Shape copy();
+    }
+
+    abstract class BaseShape implements Shape {
+        int x, y;
+        private int dx = 0, dy = 0;
+        private Color color;
+        private boolean selected = false;
+        CompoundShape parent;
+
+        BaseShape(int x, int y, Color color) {
+            this.x = x;
+            this.y = y;
+            this.color = color;
+        }
+
+        @Override
+        public int getX() {
+            return x;
+        }
+
+        @Override
+        public int getY() {
+            return y;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public void drag() {
+            dx = x;
+            dy = y;
+        }
+
+        @Override
+        public void moveTo(int x, int y) {
+            beforeChange(this);
+            this.x = dx + x;
+            this.y = dy + y;
+            moved();
+        }
+
+        @Override
+        public void moveBy(int x, int y) {
+            beforeChange(this);
+            this.x += x;
+            this.y += y;
+            moved();
+        }
+
+        @Override
+        public void drop() {
+            beforeChange(this);
+            this.x = dx;
+            this.y = dy;
+            moved();
+        }
+
+        void moved() {
+            if (parent != null) {
+                parent.childMoved(this);
+            }
+        }
+
+        @Override
+        public boolean isInsideBounds(int x, int y) {
+            return x > getX() && x < (getX() + getWidth()) &&
+                    y > getY() && y < (getY() + getHeight());
+        }
+
+        @Override
+        public Color getColor() {
+            return color;
+        }
+
+        @Override
+        public void setColor(Color color) {
+            beforeChange(this);
+            this.color = color;
+        }
+
+        @Override
+        public void select() {
+            beforeChange(this);
+            selected = true;
+        }
+
+        @Override
+        public void unSelect() {
+            beforeChange(this);
+            selected = false;
+        }
+
+        @Override
+        public boolean isSelected() {
+            return selected;
+        }
+
+        <T extends BaseShape> T copyStateTo(T copy) {
+            if (selected) {
+                copy.select();
+            }
+            return copy;
+        }
+
+        void enableSelectionStyle(Graphics graphics) {
+            graphics.setColor(Color.LIGHT_GRAY);
+
+            Graphics2D g2 = (Graphics2D) graphics;
+            float[] dash1 = {2.0f};
+            g2.setStroke(new BasicStroke(1.0f,
+                    BasicStroke.CAP_BUTT,
+                    BasicStroke.JOIN_MITER,
+                    2.0f, dash1, 0.0f));
+        }
+
+        void disableSelectionStyle(Graphics graphics) {
+            graphics.setColor(color);
+            Graphics2D g2 = (Graphics2D) graphics;
+            g2.setStroke(new BasicStroke());
+        }
+
+        @Override
+        public void paint(Graphics graphics) {
+            if (isSelected()) {
+                enableSelectionStyle(graphics);
+            }
+            else {
+                disableSelectionStyle(graphics);
+            }
+
+            // ...
+        }
+    }
+
+    public class Dot extends BaseShape {
+        private final int DOT_SIZE = 3;
+
+        public Dot(int x, int y, Color color) {
+            super(x, y, color);
+        }
+
+        @Override
+        public int getWidth() {
+            return DOT_SIZE;
+        }
+
+        @Override
+        public int getHeight() {
+            return DOT_SIZE;
+        }
+
+        @Override
+        public Shape copy() {
+            return copyStateTo(new Dot(x, y, getColor()));
+        }
+
+        @Override
+        public void paint(Graphics graphics) {
+            super.paint(graphics);
+            graphics.fillRect(x - 1, y - 1, getWidth(), getHeight());
+        }
+    }
+
+    public class Circle extends BaseShape {
+        private int radius;
+
+        public Circle(int x, int y, int radius, Color color) {
+            super(x, y, color);
+            this.radius = radius;
+        }
+
+        public int getRadius() {
+            return radius;
+        }
+
+        @Override
+        public int getWidth() {
+            return radius * 2;
+        }
+
+        @Override
+        public int getHeight() {
+            return radius * 2;
+        }
+
+        @Override
+        public Shape copy() {
+            return copyStateTo(new Circle(x, y, radius, getColor()));
+        }
+
+        @Override
+        public void paint(Graphics graphics) {
+            super.paint(graphics);
+            graphics.drawOval(x, y, getWidth() - 1, getHeight() - 1);
+        }
+    }
+
+    public class Rectangle extends BaseShape {
+        private int width;
+        private int height;
+
+        public Rectangle(int x, int y, int width, int height, Color color) {
+            super(x, y, color);
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public Shape copy() {
+            return copyStateTo(new Rectangle(x, y, width, height, getColor()));
+        }
+
+        @Override
+        public void paint(Graphics graphics) {
+            super.paint(graphics);
+            graphics.drawRect(x, y, getWidth() - 1, getHeight() - 1);
+        }
+    }
+
+    public class CompoundShape extends BaseShape {
+        // Below this many children a linear scan beats maintaining a grid.
+        private static final int INDEX_THRESHOLD = 32;
+
+        private List<Shape> children = new ArrayList<>();
+        private transient SpatialGrid grid;
+        private boolean moving;
+
+        public CompoundShape(Shape... components) {
+            super(0, 0, Color.BLACK);
+            add(components);
+        }
+
+        // Adding, removing or replacing a child changes this shape's bounds,
+        // so each of them reports to the parent like a move does.
+        public void add(Shape component) {
+            attach(component);
+            moved();
+        }
+
+        public void add(Shape... components) {
+            for (Shape component : components) {
+                attach(component);
+            }
+            moved();
+        }
+
+        private void attach(Shape component) {
+            beforeChange(this);
+            children.add(component);
+            ((BaseShape) component).parent = this;
+            if (grid != null) {
+                grid.insert(component);
+            }
+        }
+
+        public void remove(Shape child) {
+            if (detach(child)) {
+                moved();
+            }
+        }
+
+        public void remove(Shape... components) {
+            boolean removed = false;
+            for (Shape component : components) {
+                removed |= detach(component);
+            }
+            if (removed) {
+                moved();
+            }
+        }
+
+        private boolean detach(Shape child) {
+            if (!children.contains(child)) {
+                return false;
+            }
+            beforeChange((BaseShape) child);
+            children.remove(child);
+            ((BaseShape) child).parent = null;
+            if (grid != null) {
+                grid.remove(child);
+            }
+            return true;
+        }
+
+        /**
+         * Puts a shape in place of the child at the index, keeping its
+         * position in paint order.
+         */
+        public void set(int index, Shape component) {
+            beforeChange((BaseShape) children.get(index));
+            Shape old = children.set(index, component);
+            ((BaseShape) old).parent = null;
+            ((BaseShape) component).parent = this;
+            if (grid != null) {
+                grid.replace(old, component);
+            }
+            moved();
+        }
+
+        public void clear() {
+            for (Shape child : children) {
+                beforeChange((BaseShape) child);
+                ((BaseShape) child).parent = null;
+            }
+            children.clear();
+            grid = null;
+            moved();
+        }
+
+        public List<Shape> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * Called by a child whose bounds changed, so the grid and everything
+         * up the parent chain can follow.
+         */
+        void childMoved(Shape child) {
+            if (moving) {
+                return;
+            }
+            if (grid != null) {
+                grid.update(child);
+            }
+            moved();
+        }
+
+        /**
+         * Children report every move on their own; after moving all of them
+         * at once the grid is simply rebuilt on the next lookup.
+         */
+        private void movedAll() {
+            moving = false;
+            grid = null;
+            moved();
+        }
+
+        private SpatialGrid grid() {
+            if (grid == null && children.size() >= INDEX_THRESHOLD) {
+                grid = new SpatialGrid();
+                for (Shape child : children) {
+                    grid.insert(child);
+                }
+            }
+            return grid;
+        }
+
+        @Override
+        public int getX() {
+            if (children.size() == 0) {
+                return 0;
+            }
+            int x = children.get(0).getX();
+            for (Shape child : children) {
+                if (child.getX() < x) {
+                    x = child.getX();
+                }
+            }
+            return x;
+        }
+
+        @Override
+        public int getY() {
+            if (children.size() == 0) {
+                return 0;
+            }
+            int y = children.get(0).getY();
+            for (Shape child : children) {
+                if (child.getY() < y) {
+                    y = child.getY();
+                }
+            }
+            return y;
+        }
+
+        @Override
+        public int getWidth() {
+            int maxWidth = 0;
+            int x = getX();
+            for (Shape child : children) {
+                int childsRelativeX = child.getX() - x;
+                int childWidth = childsRelativeX + child.getWidth();
+                if (childWidth > maxWidth) {
+                    maxWidth = childWidth;
+                }
+            }
+            return maxWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            int maxHeight = 0;
+            int y = getY();
+            for (Shape child : children) {
+                int childsRelativeY = child.getY() - y;
+                int childHeight = childsRelativeY + child.getHeight();
+                if (childHeight > maxHeight) {
+                    maxHeight = childHeight;
+                }
+            }
+            return maxHeight;
+        }
+
+        @Override
+        public void drag() {
+            for (Shape child : children) {
+                child.drag();
+            }
+        }
+
+        @Override
+        public void drop() {
+            moving = true;
+            for (Shape child : children) {
+                child.drop();
+            }
+            movedAll();
+        }
+
+        @Override
+        public void moveTo(int x, int y) {
+            moving = true;
+            for (Shape child : children) {
+                child.moveTo(x, y);
+            }
+            movedAll();
+        }
+
+        @Override
+        public void moveBy(int x, int y) {
+            moving = true;
+            for (Shape child : children) {
+                child.moveBy(x, y);
+            }
+            movedAll();
+        }
+
+        @Override
+        public boolean isInsideBounds(int x, int y) {
+            return getChildAt(x, y) != null;
+        }
+
+        @Override
+        public void setColor(Color color) {
+            super.setColor(color);
+            for (Shape child : children) {
+                child.setColor(color);
+            }
+        }
+
+        @Override
+        public void unSelect() {
+            super.unSelect();
+            for (Shape child : children) {
+                child.unSelect();
+            }
+        }
+
+        /**
+         * Returns the first child, in paint order, that contains the point.
+         */
+        public Shape getChildAt(int x, int y) {
+            SpatialGrid grid = grid();
+            if (grid != null) {
+                return grid.childAt(x, y);
+            }
+            for (Shape child : children) {
+                if (child.isInsideBounds(x, y)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the children whose bounds intersect the area, in paint order.
+         */
+        public List<Shape> getChildrenIn(java.awt.Rectangle area) {
+            SpatialGrid grid = grid();
+            if (grid != null) {
+                return grid.query(area);
+            }
+            List<Shape> found = new ArrayList<>();
+            for (Shape child : children) {
+                if (area.intersects(child.getX(), child.getY(), child.getWidth(), child.getHeight())) {
+                    found.add(child);
+                }
+            }
+            return found;
+        }
+
+        public boolean selectChildAt(int x, int y) {
+            Shape child = getChildAt(x, y);
+            if (child != null) {
+                child.select();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Shape copy() {
+            CompoundShape copy = copyStateTo(new CompoundShape());
+            for (Shape child : children) {
+                copy.add(child.copy());
+            }
+            return copy;
+        }
+
+        public int[] getSelectedIndices() {
+            int count = 0;
+            int[] indices = new int[4];
+            for (int i = 0; i < children.size(); i++) {
+                if (children.get(i).isSelected()) {
+                    if (count == indices.length) {
+                        indices = Arrays.copyOf(indices, count * 2);
+                    }
+                    indices[count++] = i;
+                }
+            }
+            return Arrays.copyOf(indices, count);
+        }
+
+        public List<Shape> getSelected() {
+            List<Shape> selected = new ArrayList<>();
+            for (Shape child : children) {
+                if (child.isSelected()) {
+                    selected.add(child);
+                }
+            }
+            return selected;
+        }
+
+        @Override
+        public void paint(Graphics graphics) {
+            if (isSelected()) {
+                enableSelectionStyle(graphics);
+                graphics.drawRect(getX() - 1, getY() - 1, getWidth() + 1, getHeight() + 1);
+                disableSelectionStyle(graphics);
+            }
+
+            for (Shape child : children) {
+                child.paint(graphics);
+            }
+        }
+    }
+
+
+    /**
+     * Compact binary format for mementos, replacing Java serialization and
+     * Base64. Layout:
+     *
+     *   [varint paletteSize][paletteSize x int ARGB][shape]
+     *   shape = [byte kind | SELECTED][fields]
+     *
+     * Coordinates and sizes are zigzag varints, so small values take one or
+     * two bytes. Colors are written once into the palette and shapes refer to
+     * them by index.
+     */
+    public class ShapeCodec {
+        private static final int DOT = 0;
+        private static final int CIRCLE = 1;
+        private static final int RECTANGLE = 2;
+        private static final int COMPOUND = 3;
+        private static final int SELECTED = 0x80;
+
+        public byte[] encode(Shape root) {
+            Map<Integer, Integer> palette = new HashMap<>();
+            collectColors(root, palette);
+            ByteWriter out = new ByteWriter();
+            int[] colors = new int[palette.size()];
+            for (Map.Entry<Integer, Integer> entry : palette.entrySet()) {
+                colors[entry.getValue()] = entry.getKey();
+            }
+            out.writeVarInt(colors.length);
+            for (int argb : colors) {
+                out.writeInt(argb);
+            }
+            writeShape(out, root, palette);
+            return out.toByteArray();
+        }
+
+        public CompoundShape decode(byte[] data) {
+            return (CompoundShape) decodeShape(data);
+        }
+
+        public Shape decodeShape(byte[] data) {
+            ByteReader in = new ByteReader(data);
+            Color[] colors = new Color[in.readVarInt()];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = new Color(in.readInt(), true);
+            }
+            return readShape(in, colors);
+        }
+
+        private void collectColors(Shape shape, Map<Integer, Integer> palette) {
+            if (shape instanceof CompoundShape) {
+                for (Shape child : ((CompoundShape) shape).getChildren()) {
+                    collectColors(child, palette);
+                }
+            } else {
+                palette.putIfAbsent(shape.getColor().getRGB(), palette.size());
+            }
+        }
+
+        private void writeShape(ByteWriter out, Shape shape, Map<Integer, Integer> palette) {
+            int selected = shape.isSelected() ? SELECTED : 0;
+            if (shape instanceof CompoundShape) {
+                List<Shape> children = ((CompoundShape) shape).getChildren();
+                out.writeByte(COMPOUND | selected);
+                out.writeVarInt(children.size());
+                for (Shape child : children) {
+                    writeShape(out, child, palette);
+                }
+                return;
+            }
+            if (shape instanceof Dot) {
+                out.writeByte(DOT | selected);
+            } else if (shape instanceof Circle) {
+                out.writeByte(CIRCLE | selected);
+            } else if (shape instanceof Rectangle) {
+                out.writeByte(RECTANGLE | selected);
+            } else {
+                throw new IllegalArgumentException("Unsupported shape: " + shape.getClass().getName());
+            }
+            out.writeSignedVarInt(shape.getX());
+            out.writeSignedVarInt(shape.getY());
+            if (shape instanceof Circle) {
+                out.writeVarInt(((Circle) shape).getRadius());
+            } else if (shape instanceof Rectangle) {
+                out.writeVarInt(shape.getWidth());
+                out.writeVarInt(shape.getHeight());
+            }
+            out.writeVarInt(palette.get(shape.getColor().getRGB()));
+        }
+
+        private Shape readShape(ByteReader in, Color[] colors) {
+            int tag = in.readByte();
+            Shape shape;
+            switch (tag & ~SELECTED) {
+                case COMPOUND:
+                    CompoundShape compound = new CompoundShape();
+                    int count = in.readVarInt();
+                    for (int i = 0; i < count; i++) {
+                        compound.add(readShape(in, colors));
+                    }
+                    shape = compound;
+                    break;
+                case DOT:
+                    shape = new Dot(in.readSignedVarInt(), in.readSignedVarInt(), null);
+                    break;
+                case CIRCLE:
+                    shape = new Circle(in.readSignedVarInt(), in.readSignedVarInt(), in.readVarInt(), null);
+                    break;
+                case RECTANGLE:
+                    shape = new Rectangle(in.readSignedVarInt(), in.readSignedVarInt(),
+                            in.readVarInt(), in.readVarInt(), null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Corrupted memento, unknown shape kind " + tag);
+            }
+            if (!(shape instanceof CompoundShape)) {
+                shape.setColor(colors[in.readVarInt()]);
+            }
+            if ((tag & SELECTED) != 0) {
+                shape.select();
+            }
+            return shape;
+        }
+    }
+
+    /**
+     * Uniform grid over the children of one compound shape. Each child is
+     * filed under every cell its bounds cover; children spanning too many
+     * cells go to a separate list that is always checked. Entries carry
+     * their insertion order so lookups can return the same child a linear
+     * scan over the children list would.
+     */
+    class SpatialGrid {
+        private static final int CELL_SIZE = 64;
+        private static final int MAX_CELLS = 64;
+
+        private final Map<Long, List<Entry>> cells = new HashMap<>();
+        private final List<Entry> oversized = new ArrayList<>();
+        private final Map<Shape, Entry> entries = new IdentityHashMap<>();
+        private long nextOrder = 0;
+
+        private class Entry {
+            final Shape shape;
+            final long order;
+            int x0, y0, x1, y1;
+
+            Entry(Shape shape, long order) {
+                this.shape = shape;
+                this.order = order;
+            }
+        }
+
+        void insert(Shape shape) {
+            Entry entry = new Entry(shape, nextOrder++);
+            entries.put(shape, entry);
+            file(entry);
+        }
+
+        void remove(Shape shape) {
+            Entry entry = entries.remove(shape);
+            if (entry != null) {
+                unfile(entry);
+            }
+        }
+
+        void replace(Shape old, Shape shape) {
+            Entry entry = entries.remove(old);
+            unfile(entry);
+            Entry replacement = new Entry(shape, entry.order);
+            entries.put(shape, replacement);
+            file(replacement);
+        }
+
+        void update(Shape shape) {
+            Entry entry = entries.get(shape);
+            if (entry != null) {
+                unfile(entry);
+                file(entry);
+            }
+        }
+
+        Shape childAt(int x, int y) {
+            Entry best = null;
+            List<Entry> cell = cells.get(key(Math.floorDiv(x, CELL_SIZE), Math.floorDiv(y, CELL_SIZE)));
+            if (cell != null) {
+                best = closest(cell, x, y, best);
+            }
+            best = closest(oversized, x, y, best);
+            return best == null ? null : best.shape;
+        }
+
+        private Entry closest(List<Entry> candidates, int x, int y, Entry best) {
+            for (Entry entry : candidates) {
+                if ((best == null || entry.order < best.order) && entry.shape.isInsideBounds(x, y)) {
+                    best = entry;
+                }
+            }
+            return best;
+        }
+
+        List<Shape> query(java.awt.Rectangle area) {
+            Map<Shape, Entry> found = new IdentityHashMap<>();
+            int x0 = Math.floorDiv(area.x, CELL_SIZE);
+            int y0 = Math.floorDiv(area.y, CELL_SIZE);
+            int x1 = Math.floorDiv(area.x + area.width, CELL_SIZE);
+            int y1 = Math.floorDiv(area.y + area.height, CELL_SIZE);
+            for (int cx = x0; cx <= x1; cx++) {
+                for (int cy = y0; cy <= y1; cy++) {
+                    List<Entry> cell = cells.get(key(cx, cy));
+                    if (cell != null) {
+                        collect(cell, area, found);
+                    }
+                }
+            }
+            collect(oversized, area, found);
+            List<Entry> sorted = new ArrayList<>(found.values());
+            sorted.sort((a, b) -> Long.compare(a.order, b.order));
+            List<Shape> shapes = new ArrayList<>(sorted.size());
+            for (Entry entry : sorted) {
+                shapes.add(entry.shape);
+            }
+            return shapes;
+        }
+
+        private void collect(List<Entry> candidates, java.awt.Rectangle area, Map<Shape, Entry> found) {
+            for (Entry entry : candidates) {
+                Shape shape = entry.shape;
+                if (area.intersects(shape.getX(), shape.getY(), shape.getWidth(), shape.getHeight())) {
+                    found.put(shape, entry);
+                }
+            }
+        }
+
+        private void file(Entry entry) {
+            Shape shape = entry.shape;
+            entry.x0 = Math.floorDiv(shape.getX(), CELL_SIZE);
+            entry.y0 = Math.floorDiv(shape.getY(), CELL_SIZE);
+            entry.x1 = Math.floorDiv(shape.getX() + shape.getWidth(), CELL_SIZE);
+            entry.y1 = Math.floorDiv(shape.getY() + shape.getHeight(), CELL_SIZE);
+            if (isOversized(entry)) {
+                oversized.add(entry);
+                return;
+            }
+            for (int cx = entry.x0; cx <= entry.x1; cx++) {
+                for (int cy = entry.y0; cy <= entry.y1; cy++) {
+                    cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(entry);
+                }
+            }
+        }
+
+        private void unfile(Entry entry) {
+            if (isOversized(entry)) {
+                oversized.remove(entry);
+                return;
+            }
+            for (int cx = entry.x0; cx <= entry.x1; cx++) {
+                for (int cy = entry.y0; cy <= entry.y1; cy++) {
+                    long key = key(cx, cy);
+                    List<Entry> cell = cells.get(key);
+                    cell.remove(entry);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+
+        private boolean isOversized(Entry entry) {
+            return (long) (entry.x1 - entry.x0 + 1) * (entry.y1 - entry.y0 + 1) > MAX_CELLS;
+        }
+
+        private long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+        }
+    }
+
+
+    /**
+     * Append-only file of spilled mementos, mapped into memory in segments.
+     * The index keeps where each record starts and how long it is, so paging
+     * one back in is a single copy out of the mapped segment. Records are
+     * numbered in history order, so dropping redo entries truncates the log
+     * and the next writes reuse the space.
+     */
+    class HistorySpill implements Closeable {
+        private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+        private final File file;
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private long mapped = 0;
+        private int[] segmentIndex = new int[64];
+        private int[] positions = new int[64];
+        private int[] lengths = new int[64];
+        private int records = 0;
+
+        HistorySpill() {
+            try {
+                file = File.createTempFile("momento-history", ".seg");
+                file.deleteOnExit();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int write(byte[] data) {
+            MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.remaining() < data.length) {
+                int size = Math.max(SEGMENT_SIZE, data.length);
+                try {
+                    segment = channel.map(FileChannel.MapMode.READ_WRITE, mapped, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                mapped += size;
+                segments.add(segment);
+            }
+            if (records == lengths.length) {
+                segmentIndex = Arrays.copyOf(segmentIndex, records * 2);
+                positions = Arrays.copyOf(positions, records * 2);
+                lengths = Arrays.copyOf(lengths, records * 2);
+            }
+            segmentIndex[records] = segments.size() - 1;
+            positions[records] = segment.position();
+            lengths[records] = data.length;
+            segment.put(data);
+            return records++;
+        }
+
+        byte[] read(int record) {
+            byte[] data = new byte[lengths[record]];
+            segments.get(segmentIndex[record]).get(positions[record], data);
+            return data;
+        }
+
+        /**
+         * Forgets every record from the given one on. Segments past the one it
+         * starts in are dropped, and their file range gets mapped again by the
+         * next writes that need it.
+         */
+        void truncate(int record) {
+            if (record >= records) {
+                return;
+            }
+            int segment = segmentIndex[record];
+            while (segments.size() > segment + 1) {
+                mapped -= segments.remove(segments.size() - 1).capacity();
+            }
+            segments.get(segment).position(positions[record]);
+            records = record;
+        }
+
+        /**
+         * Drops the mappings and deletes the file. Mapped memory is released
+         * once the segments are collected.
+         */
+        @Override
+        public void close() {
+            segments.clear();
+            records = 0;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            file.delete();
+        }
+    }
+
+    class ByteWriter {
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        void writeByte(int value) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            if (size + bytes.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeInt(int value) {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeSignedVarInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    class ByteReader {
+        private final byte[] data;
+        private int position;
+
+        ByteReader(byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() {
+            return data[position++] & 0xFF;
+        }
+
+        byte[] readBytes(int length) {
+            byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        int readInt() {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        int readSignedVarInt() {
+            int raw = readVarInt();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+    }
+
+
+    /**
+     * Compares the binary codec with the old ObjectOutputStream + Base64
+     * backup on a 10k shape scene.
+     */
+    public class MementoBenchmark {
+        public static void main(String[] args) throws Exception {
+            Momento momento = new Momento();
+            CompoundShape scene = momento.randomScene(10_000, 42);
+            ShapeCodec codec = momento.new ShapeCodec();
+            int rounds = 200;
+
+            String legacy = "";
+            byte[] binary = new byte[0];
+            for (int warmup = 0; warmup < 2; warmup++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    legacy = serialize(scene);
+                }
+                long legacyBackup = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    deserialize(legacy);
+                }
+                long legacyRestore = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    binary = codec.encode(scene);
+                }
+                long binaryBackup = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    codec.decode(binary);
+                }
+                long binaryRestore = System.nanoTime() - start;
+
+                if (warmup == 1) {
+                    System.out.printf("serialization+Base64: %d bytes, backup %.3f ms, restore %.3f ms%n",
+                            legacy.length(), legacyBackup / 1e6 / rounds, legacyRestore / 1e6 / rounds);
+                    System.out.printf("binary codec:         %d bytes, backup %.3f ms, restore %.3f ms%n",
+                            binary.length, binaryBackup / 1e6 / rounds, binaryRestore / 1e6 / rounds);
+                }
+            }
+        }
+
+        private static String serialize(CompoundShape scene) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(scene);
+            oos.close();
+            return Base64.getEncoder().encodeToString(baos.toByteArray());
+        }
+
+        private static Object deserialize(String state) throws Exception {
+            byte[] data = Base64.getDecoder().decode(state);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+            Object scene = ois.readObject();
+            ois.close();
+            return scene;
+        }
+    }
+
+    /**
+     * Drags one group across a 50k shape scene and compares a fresh full
+     * frame per drag step with the reused back buffer and dirty region.
+     */
+    public class CanvasBenchmark {
+        public static void main(String[] args) {
+            Momento momento = new Momento();
+            CompoundShape scene = momento.clusteredScene(50_000, 7);
+            int width = scene.getX() + scene.getWidth() + 10;
+            int height = scene.getY() + scene.getHeight() + 10;
+            Shape dragged = scene.getChildren().get(0);
+            dragged.select();
+            BackBuffer backBuffer = momento.new BackBuffer();
+            int frames = 100;
+
+            for (int warmup = 0; warmup < 2; warmup++) {
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    dragged.moveBy(i % 2 == 0 ? 3 : -3, 0);
+                    BufferedImage buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                    Graphics2D ig2 = buffer.createGraphics();
+                    ig2.setBackground(Color.WHITE);
+                    ig2.clearRect(0, 0, width, height);
+                    scene.paint(ig2);
+                    ig2.dispose();
+                }
+                long fullTime = System.nanoTime() - start;
+                long fullAllocated = allocatedBytes() - allocated;
+
+                backBuffer.render(scene, width, height, null);
+                allocated = allocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    java.awt.Rectangle before = BackBuffer.paintBounds(dragged);
+                    dragged.moveBy(i % 2 == 0 ? 3 : -3, 0);
+                    backBuffer.render(scene, width, height, before.union(BackBuffer.paintBounds(dragged)));
+                }
+                long dirtyTime = System.nanoTime() - start;
+                long dirtyAllocated = allocatedBytes() - allocated;
+
+                if (warmup == 1) {
+                    System.out.printf("full frame:   %.3f ms/frame, %d KB allocated/frame%n",
+                            fullTime / 1e6 / frames, fullAllocated / 1024 / frames);
+                    System.out.printf("dirty region: %.3f ms/frame, %d KB allocated/frame%n",
+                            dirtyTime / 1e6 / frames, dirtyAllocated / 1024 / frames);
+                }
+            }
+        }
+
+        private static long allocatedBytes() {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    /**
+     * Scene of dots, circles and rectangles in groups of ten, drawn from a
+     * 16 color palette and spread over the whole 2000x2000 area.
+     */
+    CompoundShape randomScene(int shapes, long seed) {
+        Random random = new Random(seed);
+        Color[] palette = randomPalette(random);
+        CompoundShape scene = new CompoundShape();
+        CompoundShape group = null;
+        for (int i = 0; i < shapes; i++) {
+            if (i % 10 == 0) {
+                group = new CompoundShape();
+                scene.add(group);
+            }
+            group.add(randomShape(random, random.nextInt(2000), random.nextInt(2000), palette));
+        }
+        return scene;
+    }
+
+    /**
+     * Like randomScene, but keeps each group of ten inside a 100x100 area,
+     * so dragging a group dirties a small region of the canvas.
+     */
+    CompoundShape clusteredScene(int shapes, long seed) {
+        Random random = new Random(seed);
+        Color[] palette = randomPalette(random);
+        CompoundShape scene = new CompoundShape();
+        CompoundShape group = null;
+        int groupX = 0;
+        int groupY = 0;
+        for (int i = 0; i < shapes; i++) {
+            if (i % 10 == 0) {
+                group = new CompoundShape();
+                scene.add(group);
+                groupX = random.nextInt(1900);
+                groupY = random.nextInt(1900);
+            }
+            group.add(randomShape(random, groupX + random.nextInt(100), groupY + random.nextInt(100), palette));
+        }
+        return scene;
+    }
+
+    private Color[] randomPalette(Random random) {
+        Color[] palette = new Color[16];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = new Color(random.nextInt(0x1000000));
+        }
+        return palette;
+    }
+
+    private Shape randomShape(Random random, int x, int y, Color[] palette) {
+        Color color = palette[random.nextInt(palette.length)];
+        switch (random.nextInt(3)) {
+            case 0:
+                return new Dot(x, y, color);
+            case 1:
+                return new Circle(x, y, 1 + random.nextInt(50), color);
+            default:
+                return new Rectangle(x, y, 1 + random.nextInt(100), 1 + random.nextInt(100), color);
+        }
+    }
 
 }
@@ -1,9 +1,36 @@
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class Observer {
@@ -33,51 +60,729 @@ notifies its subscribers. EmailNotificationListener
    */
 
     
+    /**
+     * An event type registered with one EventManager. Its ordinal indexes
+     * that manager's listener table, so typed notify needs no hashing.
+     */
+    public class EventType {
+        public final String name;
+        public final int ordinal;
+
+        EventType(String name, int ordinal) {
+            this.name = name;
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Handle for one subscription; closing it unsubscribes.
+     */
+    public class Subscription implements AutoCloseable {
+        private final Runnable cancel;
+
+        Subscription(Runnable cancel) {
+            this.cancel = cancel;
+        }
+
+        @Override
+        public void close() {
+            cancel.run();
+        }
+    }
+
+    /**
+     * Stands in for a listener that is only held weakly or only until a
+     * deadline. target() is null once the listener is gone or expired.
+     */
+    class ManagedListener implements EventListener {
+        private final EventListener strong;
+        private final WeakReference<EventListener> weak;
+        // System.nanoTime() deadline, or 0 for none.
+        private final long expiresAt;
+
+        ManagedListener(EventListener listener, boolean weak, long expiresAt) {
+            this.strong = weak ? null : listener;
+            this.weak = weak ? new WeakReference<>(listener) : null;
+            this.expiresAt = expiresAt;
+        }
+
+        EventListener target() {
+            if (expiresAt != 0 && System.nanoTime() - expiresAt >= 0) {
+                return null;
+            }
+            return strong != null ? strong : weak.get();
+        }
+
+        // Lets unsubscribe find the entry by the listener it stands in for,
+        // expired or not.
+        boolean wraps(EventListener listener) {
+            return listener.equals(strong != null ? strong : weak.get());
+        }
+
+        static boolean registered(EventListener entry, EventListener listener) {
+            return entry.equals(listener) || entry instanceof ManagedListener && ((ManagedListener) entry).wraps(listener);
+        }
+
+        @Override
+        public void update(String eventType, File file) {
+            EventListener target = target();
+            if (target != null) {
+                target.update(eventType, file);
+            }
+        }
+    }
+
+    /**
+     * Pattern subscriptions. Topics are dot-separated segments such as
+     * "file.save.pdf"; in a pattern "*" stands for exactly one segment and
+     * "#" for zero or more, so "file.*" matches "file.open" and
+     * "file.save.#" matches "file.save" and "file.save.pdf". Patterns share
+     * a trie keyed by segment, so publishing walks only the branches the
+     * topic's segments and the wildcards lead to, however many patterns
+     * there are. A listener is notified once per matching subscription.
+     */
+    class TopicTrie {
+        private final EventListener[] none = new EventListener[0];
+        private final Node root = new Node();
+        private volatile int size = 0;
+
+        private class Node {
+            final Map<String, Node> children = new ConcurrentHashMap<>();
+            volatile Node star;
+            volatile Node hash;
+            volatile EventListener[] listeners = none;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        // "#.#" matches the same topics as "#", so runs of "#" are stored as
+        // one and match does not try every split of the topic between them.
+        private String[] segments(String pattern) {
+            String[] segments = pattern.split("\\.", -1);
+            int count = 0;
+            for (String segment : segments) {
+                if (!(segment.equals("#") && count > 0 && segments[count - 1].equals("#"))) {
+                    segments[count++] = segment;
+                }
+            }
+            return Arrays.copyOf(segments, count);
+        }
+
+        synchronized void add(String pattern, EventListener listener) {
+            Node node = root;
+            for (String segment : segments(pattern)) {
+                if (segment.equals("*")) {
+                    if (node.star == null) {
+                        node.star = new Node();
+                    }
+                    node = node.star;
+                } else if (segment.equals("#")) {
+                    if (node.hash == null) {
+                        node.hash = new Node();
+                    }
+                    node = node.hash;
+                } else {
+                    node = node.children.computeIfAbsent(segment, key -> new Node());
+                }
+            }
+            EventListener[] grown = Arrays.copyOf(node.listeners, node.listeners.length + 1);
+            grown[grown.length - 1] = listener;
+            node.listeners = grown;
+            size++;
+        }
+
+        synchronized void remove(String pattern, EventListener listener) {
+            String[] segments = segments(pattern);
+            Node[] path = new Node[segments.length + 1];
+            path[0] = root;
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                Node node = path[i];
+                path[i + 1] = segment.equals("*") ? node.star : segment.equals("#") ? node.hash : node.children.get(segment);
+                if (path[i + 1] == null) {
+                    return;
+                }
+            }
+            Node node = path[segments.length];
+            EventListener[] users = node.listeners;
+            for (int i = 0; i < users.length; i++) {
+                if (users[i].equals(listener)) {
+                    EventListener[] shrunk = new EventListener[users.length - 1];
+                    System.arraycopy(users, 0, shrunk, 0, i);
+                    System.arraycopy(users, i + 1, shrunk, i, users.length - i - 1);
+                    node.listeners = shrunk;
+                    size--;
+                    prune(segments, path);
+                    return;
+                }
+            }
+        }
+
+        // Unlinks the nodes at the end of the path that lead to no listener,
+        // deepest first. A publish already inside one just finds it empty.
+        private void prune(String[] segments, Node[] path) {
+            for (int i = segments.length; i > 0; i--) {
+                Node node = path[i];
+                if (node.listeners.length > 0 || !node.children.isEmpty() || node.star != null || node.hash != null) {
+                    return;
+                }
+                Node parent = path[i - 1];
+                String segment = segments[i - 1];
+                if (segment.equals("*")) {
+                    parent.star = null;
+                } else if (segment.equals("#")) {
+                    parent.hash = null;
+                } else {
+                    parent.children.remove(segment);
+                }
+            }
+        }
+
+        void publish(String topic, File file) {
+            List<Node> matched = new ArrayList<>();
+            match(root, topic, 0, matched);
+            for (Node node : matched) {
+                for (EventListener listener : node.listeners) {
+                    listener.update(topic, file);
+                }
+            }
+        }
+
+        // Collects the nodes whose pattern matches the topic. With "#" a
+        // pattern can match in several ways and so reach a node more than
+        // once. from is where the next segment starts, or past the end when
+        // no segments are left.
+        private void match(Node node, String topic, int from, List<Node> matched) {
+            Node hash = node.hash;
+            if (hash != null) {
+                // Let "#" take zero, one, two... of the remaining segments.
+                int next = from;
+                while (true) {
+                    match(hash, topic, next, matched);
+                    if (next > topic.length()) {
+                        break;
+                    }
+                    int dot = topic.indexOf('.', next);
+                    next = dot < 0 ? topic.length() + 1 : dot + 1;
+                }
+            }
+            if (from > topic.length()) {
+                if (node.listeners.length > 0 && !containsNode(matched, node)) {
+                    matched.add(node);
+                }
+                return;
+            }
+            int dot = topic.indexOf('.', from);
+            int end = dot < 0 ? topic.length() : dot;
+            Node exact = node.children.get(topic.substring(from, end));
+            if (exact != null) {
+                match(exact, topic, end + 1, matched);
+            }
+            Node star = node.star;
+            if (star != null) {
+                match(star, topic, end + 1, matched);
+            }
+        }
+
+        private boolean containsNode(List<Node> matched, Node node) {
+            for (Node seen : matched) {
+                if (seen == node) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Listeners are kept per event type in arrays that are never modified:
+     * subscribe and unsubscribe swap in a copy, so notify reads a snapshot
+     * without locking and a listener may (un)subscribe while being notified.
+     * The String methods look up the EventType and delegate.
+     */
     public class EventManager {
-        Map<String, List<EventListener>> listeners = new HashMap<>();
+        private static final EventListener[] NONE = new EventListener[0];
+
+        private final Map<String, EventType> types = new ConcurrentHashMap<>();
+        private volatile EventType[] eventTypes = new EventType[0];
+        private volatile EventListener[][] table = new EventListener[0][];
+        private ScheduledExecutorService batchTimer;
+        private final TopicTrie topics = new TopicTrie();
 
         public EventManager(String... operations) {
             for (String operation : operations) {
-                this.listeners.put(operation, new ArrayList<>());
+                addEventType(operation);
             }
         }
 
-        public void subscribe(String eventType, EventListener listener) {
-            List<EventListener> users = listeners.get(eventType);
-            users.add(listener);
+        public void addEventType(String eventType) {
+            eventType(eventType);
+        }
+
+        /**
+         * Returns the handle for the event type, registering it on first use.
+         */
+        public EventType eventType(String name) {
+            EventType type = types.get(name);
+            if (type != null) {
+                return type;
+            }
+            synchronized (this) {
+                type = types.get(name);
+                if (type == null) {
+                    type = new EventType(name, eventTypes.length);
+                    EventType[] grownTypes = Arrays.copyOf(eventTypes, type.ordinal + 1);
+                    grownTypes[type.ordinal] = type;
+                    EventListener[][] grownTable = Arrays.copyOf(table, type.ordinal + 1);
+                    grownTable[type.ordinal] = NONE;
+                    table = grownTable;
+                    eventTypes = grownTypes;
+                    types.put(name, type);
+                }
+                return type;
+            }
+        }
+
+        public Subscription subscribe(String eventType, EventListener listener) {
+            return subscribe(eventType(eventType), listener);
+        }
+
+        /**
+         * Subscribes without keeping the listener reachable: once nothing
+         * else refers to it, it stops being notified and is dropped from the
+         * listener list by the next notify.
+         */
+        public Subscription subscribeWeak(String eventType, EventListener listener) {
+            return subscribe(eventType(eventType), new ManagedListener(listener, true, 0));
+        }
+
+        /**
+         * Subscribes for a limited time, after which the listener is no
+         * longer notified and is dropped by the next notify.
+         */
+        public Subscription subscribe(String eventType, EventListener listener, long ttl, TimeUnit unit) {
+            long expiresAt = System.nanoTime() + unit.toNanos(ttl);
+            return subscribe(eventType(eventType), new ManagedListener(listener, false, expiresAt == 0 ? 1 : expiresAt));
         }
 
         public void unsubscribe(String eventType, EventListener listener) {
-            List<EventListener> users = listeners.get(eventType);
-            users.remove(listener);
+            EventType type = types.get(eventType);
+            if (type != null) {
+                unsubscribe(type, listener);
+            }
+        }
+
+        public synchronized Subscription subscribe(EventType eventType, EventListener listener) {
+            check(eventType);
+            EventListener[][] copy = table.clone();
+            EventListener[] users = copy[eventType.ordinal];
+            users = Arrays.copyOf(users, users.length + 1);
+            users[users.length - 1] = listener;
+            copy[eventType.ordinal] = users;
+            table = copy;
+            return new Subscription(() -> unsubscribe(eventType, listener));
+        }
+
+        public synchronized void unsubscribe(EventType eventType, EventListener listener) {
+            check(eventType);
+            EventListener[] users = table[eventType.ordinal];
+            for (int i = 0; i < users.length; i++) {
+                if (ManagedListener.registered(users[i], listener)) {
+                    EventListener[] shrunk = new EventListener[users.length - 1];
+                    System.arraycopy(users, 0, shrunk, 0, i);
+                    System.arraycopy(users, i + 1, shrunk, i, users.length - i - 1);
+                    EventListener[][] copy = table.clone();
+                    copy[eventType.ordinal] = shrunk;
+                    table = copy;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Subscribes the listener behind its own queue and delivery thread,
+         * so a slow listener no longer holds up notify. Closing the returned
+         * handle unsubscribes it and stops the thread.
+         */
+        public AsyncListener subscribeAsync(String eventType, EventListener listener,
+                                            int capacity, OverflowPolicy policy) {
+            AsyncListener async = new AsyncListener(listener, capacity, policy);
+            async.subscription = subscribe(eventType, async);
+            return async;
+        }
+
+        /**
+         * Subscribes the listener for batched delivery: events are collected
+         * until maxCount are pending or windowMillis has passed since the
+         * first of them, then handed over in one updateAll per event type.
+         * With dedup, repeated events on the same file within a batch are
+         * delivered once. Closing the returned handle unsubscribes it and
+         * delivers what is pending.
+         */
+        public BatchingListener subscribeBatched(String eventType, BatchListener listener,
+                                                 int maxCount, long windowMillis, boolean dedup) {
+            BatchingListener batching = new BatchingListener(listener, maxCount, windowMillis, dedup, batchTimer());
+            batching.subscription = subscribe(eventType, batching);
+            return batching;
+        }
+
+        private synchronized ScheduledExecutorService batchTimer() {
+            if (batchTimer == null) {
+                batchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "observer-batch-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return batchTimer;
+        }
+
+        /**
+         * Subscribes to every event whose name matches the pattern, see
+         * TopicTrie. Pattern subscribers are notified after the listeners
+         * of the exact event type.
+         */
+        public Subscription subscribePattern(String pattern, EventListener listener) {
+            topics.add(pattern, listener);
+            return new Subscription(() -> topics.remove(pattern, listener));
         }
 
         public void notify(String eventType, File file) {
-            List<EventListener> users = listeners.get(eventType);
+            EventType type = types.get(eventType);
+            if (type != null) {
+                notify(type, file);
+            } else if (!topics.isEmpty()) {
+                topics.publish(eventType, file);
+            }
+        }
+
+        public void notify(EventType eventType, File file) {
+            check(eventType);
+            boolean stale = false;
+            for (EventListener listener : table[eventType.ordinal]) {
+                if (listener instanceof ManagedListener) {
+                    EventListener target = ((ManagedListener) listener).target();
+                    if (target == null) {
+                        stale = true;
+                    } else {
+                        target.update(eventType.name, file);
+                    }
+                } else {
+                    listener.update(eventType.name, file);
+                }
+            }
+            if (stale) {
+                purge(eventType);
+            }
+            notifyPatterns(eventType, file);
+        }
+
+        void notifyPatterns(EventType eventType, File file) {
+            if (!topics.isEmpty()) {
+                topics.publish(eventType.name, file);
+            }
+        }
+
+        private synchronized void purge(EventType eventType) {
+            EventListener[] users = table[eventType.ordinal];
+            EventListener[] live = new EventListener[users.length];
+            int count = 0;
             for (EventListener listener : users) {
-                listener.update(eventType, file);
+                if (!(listener instanceof ManagedListener) || ((ManagedListener) listener).target() != null) {
+                    live[count++] = listener;
+                }
+            }
+            EventListener[][] copy = table.clone();
+            copy[eventType.ordinal] = Arrays.copyOf(live, count);
+            table = copy;
+        }
+
+        // eventTypes is published after table, so a type that passes this
+        // check always has a row in the table.
+        private void check(EventType eventType) {
+            EventType[] known = eventTypes;
+            if (eventType.ordinal >= known.length || known[eventType.ordinal] != eventType) {
+                throw new IllegalArgumentException("Event type " + eventType + " belongs to another EventManager");
             }
         }
     }
 
 
         
+    /**
+     * EventManager backed by a ring buffer of preallocated slots. One thread
+     * publishes; every subscription is a consumer on its own thread that
+     * follows the producer by sequence number and handles everything
+     * published since its last look in one batch. Publishing allocates
+     * nothing and never looks up a string when given an event code.
+     *
+     * A side that has to wait spins and yields for a short while and then
+     * blocks on a condition; the other side only takes the lock to signal
+     * it when it sees that someone is blocked.
+     */
+    public class RingBufferEventManager extends EventManager implements AutoCloseable {
+        private final int mask;
+        private final int[] slotTypes;
+        private final File[] slotFiles;
+
+        private volatile RingConsumer[] consumers = new RingConsumer[0];
+
+        // Last published sequence; written only by the producer.
+        private volatile long cursor = -1;
+        // Lowest consumer sequence the producer saw last time it looked.
+        private long cachedGate = -1;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        // Signalled by the producer after publishing.
+        private final Condition published = lock.newCondition();
+        // Signalled by consumers after handling a batch.
+        private final Condition consumed = lock.newCondition();
+        // Only changed while holding lock.
+        private volatile int waitingConsumers = 0;
+        private volatile boolean producerWaiting = false;
+
+        public RingBufferEventManager(int capacity, String... operations) {
+            super(operations);
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+            }
+            mask = capacity - 1;
+            slotTypes = new int[capacity];
+            slotFiles = new File[capacity];
+        }
+
+        @Override
+        public synchronized Subscription subscribe(EventType eventType, EventListener listener) {
+            RingConsumer consumer = new RingConsumer(eventType, listener);
+            RingConsumer[] grown = Arrays.copyOf(consumers, consumers.length + 1);
+            grown[consumers.length] = consumer;
+            consumers = grown;
+            // Only now does the producer wait for this consumer, so slots past
+            // the cursor read in the constructor may already be reused.
+            consumer.sequence = cursor;
+            consumer.thread.start();
+            return new Subscription(() -> unsubscribe(eventType, listener));
+        }
+
+        @Override
+        public synchronized void unsubscribe(EventType eventType, EventListener listener) {
+            for (int i = 0; i < consumers.length; i++) {
+                if (consumers[i].code == eventType.ordinal && ManagedListener.registered(consumers[i].listener, listener)) {
+                    RingConsumer consumer = consumers[i];
+                    RingConsumer[] shrunk = new RingConsumer[consumers.length - 1];
+                    System.arraycopy(consumers, 0, shrunk, 0, i);
+                    System.arraycopy(consumers, i + 1, shrunk, i, consumers.length - i - 1);
+                    consumers = shrunk;
+                    consumer.removed = true;
+                    signalAll(published);
+                    signalAll(consumed);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Publishes the event to the consumers, then notifies the pattern
+         * subscribers on the calling thread.
+         */
+        @Override
+        public void notify(EventType eventType, File file) {
+            publish(eventType.ordinal, file);
+            notifyPatterns(eventType, file);
+        }
+
+        /**
+         * Publishes an event by its EventType ordinal. Must always be called
+         * from the same thread. Pattern subscribers are only notified by
+         * notify.
+         */
+        public void publish(int eventType, File file) {
+            long next = cursor + 1;
+            long wrap = next - slotTypes.length;
+            int idle = 0;
+            while (wrap > cachedGate) {
+                cachedGate = minimumSequence(next - 1);
+                if (wrap > cachedGate) {
+                    if (idle < SPIN_TRIES) {
+                        idle = spin(idle);
+                    } else {
+                        awaitConsumers(wrap, next - 1);
+                    }
+                }
+            }
+            int slot = (int) next & mask;
+            slotTypes[slot] = eventType;
+            slotFiles[slot] = file;
+            cursor = next;
+            if (waitingConsumers > 0) {
+                signalAll(published);
+            }
+        }
+
+        private void awaitConsumers(long wrap, long minimum) {
+            lock.lock();
+            try {
+                producerWaiting = true;
+                while (wrap > minimumSequence(minimum)) {
+                    consumed.awaitUninterruptibly();
+                }
+            } finally {
+                producerWaiting = false;
+                lock.unlock();
+            }
+        }
+
+        private void awaitProducer(RingConsumer consumer) {
+            lock.lock();
+            try {
+                waitingConsumers++;
+                while (cursor <= consumer.sequence && consumer.running && !consumer.removed) {
+                    published.awaitUninterruptibly();
+                }
+            } finally {
+                waitingConsumers--;
+                lock.unlock();
+            }
+        }
+
+        private void signalAll(Condition condition) {
+            lock.lock();
+            try {
+                condition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stops all consumers after they have handled what is published. If
+         * interrupted while waiting, returns with the interrupt flag set and
+         * leaves the consumers to finish on their own.
+         */
+        @Override
+        public synchronized void close() {
+            for (RingConsumer consumer : consumers) {
+                consumer.running = false;
+            }
+            signalAll(published);
+            try {
+                for (RingConsumer consumer : consumers) {
+                    consumer.thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumers = new RingConsumer[0];
+        }
+
+        private long minimumSequence(long minimum) {
+            for (RingConsumer consumer : consumers) {
+                minimum = Math.min(minimum, consumer.sequence);
+            }
+            return minimum;
+        }
+
+        // Spin briefly, then yield; past SPIN_TRIES the caller blocks.
+        private static final int SPIN_TRIES = 200;
+
+        private int spin(int idle) {
+            if (idle < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            return idle + 1;
+        }
+
+        private class RingConsumer {
+            final EventType eventType;
+            final int code;
+            final String name;
+            final EventListener listener;
+            final Thread thread;
+            // Last sequence this consumer has handled. Read again once the
+            // consumer is in the gating array, see subscribe.
+            volatile long sequence = cursor;
+            // Cleared by close(), which lets the consumer catch up first.
+            volatile boolean running = true;
+            // Set by unsubscribe; the producer no longer waits for this consumer.
+            volatile boolean removed = false;
+
+            RingConsumer(EventType eventType, EventListener listener) {
+                this.eventType = eventType;
+                this.code = eventType.ordinal;
+                this.name = eventType.name;
+                this.listener = listener;
+                this.thread = new Thread(this::run, "ring-consumer");
+                thread.setDaemon(true);
+            }
+
+            private void run() {
+                int idle = 0;
+                while (!removed) {
+                    long available = cursor;
+                    if (available > sequence) {
+                        for (long next = sequence + 1; next <= available; next++) {
+                            int slot = (int) next & mask;
+                            if (slotTypes[slot] == code) {
+                                // A failing listener must not stall the sequence,
+                                // the producer waits for it.
+                                try {
+                                    listener.update(name, slotFiles[slot]);
+                                } catch (RuntimeException e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        }
+                        sequence = available;
+                        idle = 0;
+                        if (producerWaiting) {
+                            signalAll(consumed);
+                        }
+                        if (listener instanceof ManagedListener && ((ManagedListener) listener).target() == null) {
+                            unsubscribe(eventType, listener);
+                        }
+                    } else if (!running) {
+                        return;
+                    } else if (idle < SPIN_TRIES) {
+                        idle = spin(idle);
+                    } else {
+                        awaitProducer(this);
+                        idle = 0;
+                    }
+                }
+            }
+        }
+    }
+
+
     public class Editor {
         public EventManager events;
+        private final EventType open;
+        private final EventType save;
         private File file;
 
         public Editor() {
             this.events = new EventManager("open", "save");
+            this.open = events.eventType("open");
+            this.save = events.eventType("save");
         }
 
         public void openFile(String filePath) {
             this.file = new File(filePath);
-            events.notify("open", file);
+            events.notify(open, file);
         }
 
         public void saveFile() throws Exception {
             if (this.file != null) {
-                events.notify("save", file);
+                events.notify(save, file);
             } else {
                 throw new Exception("Please open a file first.");
             }
@@ -89,7 +794,256 @@ notifies its subscribers. EmailNotificationListener
         void update(String eventType, File file);
     }
 
-    public class EmailNotificationListener implements EventListener {
+    public enum OverflowPolicy {
+        // Make notify wait for room in the queue.
+        BLOCK,
+        // Discard the oldest queued event to make room.
+        DROP_OLDEST,
+        // Discard the event being published.
+        DROP_NEWEST
+    }
+
+    /**
+     * Queues events for one listener and delivers them in order on a
+     * daemon thread of its own.
+     */
+    public class AsyncListener implements EventListener, AutoCloseable {
+        // How often an idle delivery thread checks whether it was closed.
+        private static final long POLL_MILLIS = 50;
+
+        private final EventListener listener;
+        private final OverflowPolicy policy;
+        private final BlockingQueue<Delivery> queue;
+        private final Thread thread;
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long lastLagNanos;
+        private volatile boolean closed;
+        // Set by subscribeAsync, closed along with the listener.
+        private Subscription subscription;
+
+        private class Delivery {
+            final String eventType;
+            final File file;
+            final long queuedAt = System.nanoTime();
+
+            Delivery(String eventType, File file) {
+                this.eventType = eventType;
+                this.file = file;
+            }
+        }
+
+        public AsyncListener(EventListener listener, int capacity, OverflowPolicy policy) {
+            this.listener = listener;
+            this.policy = policy;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this::drain, "observer-" + listener.getClass().getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void update(String eventType, File file) {
+            if (closed) {
+                return;
+            }
+            Delivery delivery = new Delivery(eventType, file);
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        queue.put(delivery);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(delivery)) {
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                case DROP_NEWEST:
+                    if (!queue.offer(delivery)) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    break;
+            }
+            // Closed meanwhile: the delivery thread may already have found the
+            // queue empty and stopped, so take the event back unless it was
+            // delivered after all.
+            if (closed && queue.remove(delivery)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        private void drain() {
+            try {
+                while (!closed || !queue.isEmpty()) {
+                    Delivery delivery = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (delivery == null) {
+                        continue;
+                    }
+                    lastLagNanos = System.nanoTime() - delivery.queuedAt;
+                    try {
+                        listener.update(delivery.eventType, delivery.file);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    delivered.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // Interrupted from outside, stop delivering.
+            }
+        }
+
+        public int depth() {
+            return queue.size();
+        }
+
+        /**
+         * How long the event now waiting at the head of the queue has waited.
+         */
+        public long lagNanos() {
+            Delivery head = queue.peek();
+            return head == null ? 0 : System.nanoTime() - head.queuedAt;
+        }
+
+        /**
+         * How long the last delivered event waited in the queue.
+         */
+        public long lastLagNanos() {
+            return lastLagNanos;
+        }
+
+        public long delivered() {
+            return delivered.get();
+        }
+
+        public long dropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Unsubscribes, stops accepting events, delivers what is queued and
+         * waits for the delivery thread to finish. If interrupted while
+         * waiting, returns with the interrupt flag set.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (subscription != null) {
+                subscription.close();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A listener that can take several events of one type at once.
+     */
+    public interface BatchListener extends EventListener {
+        void updateAll(String eventType, List<File> files);
+
+        @Override
+        default void update(String eventType, File file) {
+            updateAll(eventType, Collections.singletonList(file));
+        }
+    }
+
+    /**
+     * Collects events for a BatchListener and delivers them in batches,
+     * on the notifying thread when a batch fills up and on the timer
+     * thread when its window runs out. Batches are delivered in order.
+     */
+    public class BatchingListener implements EventListener, AutoCloseable {
+        private final BatchListener listener;
+        private final int maxCount;
+        private final long windowMillis;
+        private final boolean dedup;
+        private final ScheduledExecutorService timer;
+        private final Object delivery = new Object();
+
+        private Map<String, Collection<File>> pending = new LinkedHashMap<>();
+        private int size = 0;
+        private ScheduledFuture<?> scheduled;
+        // Set by subscribeBatched, closed along with the listener.
+        private Subscription subscription;
+
+        public BatchingListener(BatchListener listener, int maxCount, long windowMillis,
+                                boolean dedup, ScheduledExecutorService timer) {
+            this.listener = listener;
+            this.maxCount = maxCount;
+            this.windowMillis = windowMillis;
+            this.dedup = dedup;
+            this.timer = timer;
+        }
+
+        @Override
+        public void update(String eventType, File file) {
+            boolean full;
+            synchronized (this) {
+                Collection<File> files = pending.computeIfAbsent(eventType,
+                        type -> dedup ? new LinkedHashSet<>() : new ArrayList<>());
+                if (files.add(file)) {
+                    size++;
+                }
+                full = size >= maxCount;
+                if (!full && scheduled == null && windowMillis > 0) {
+                    scheduled = timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (full) {
+                flush();
+            }
+        }
+
+        /**
+         * Delivers whatever is pending now.
+         */
+        public void flush() {
+            synchronized (delivery) {
+                Map<String, Collection<File>> batch;
+                synchronized (this) {
+                    if (size == 0) {
+                        return;
+                    }
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                    size = 0;
+                    if (scheduled != null) {
+                        scheduled.cancel(false);
+                        scheduled = null;
+                    }
+                }
+                for (Map.Entry<String, Collection<File>> entry : batch.entrySet()) {
+                    listener.updateAll(entry.getKey(), new ArrayList<>(entry.getValue()));
+                }
+            }
+        }
+
+        /**
+         * Unsubscribes and delivers whatever is pending.
+         */
+        @Override
+        public void close() {
+            if (subscription != null) {
+                subscription.close();
+            }
+            flush();
+        }
+    }
+
+    public class EmailNotificationListener implements BatchListener {
         private String email;
     
         public EmailNotificationListener(String email) {
@@ -100,33 +1054,401 @@ notifies its subscribers. EmailNotificationListener
         public void update(String eventType, File file) {
             System.out.println("Email to " + email + ": Someone has performed " + eventType + " operation with the following file: " + file.getName());
         }
+
+        @Override
+        public void updateAll(String eventType, List<File> files) {
+            if (files.size() == 1) {
+                update(eventType, files.get(0));
+                return;
+            }
+            System.out.println("Email to " + email + ": Someone has performed " + eventType + " operation with " + files.size() + " files, starting with: " + files.get(0).getName());
+        }
     }
 
-    public class LogOpenListener implements EventListener {
+    public class LogOpenListener implements EventListener, AutoCloseable {
         private File log;
+        private final LogWriter writer;
     
         public LogOpenListener(String fileName) {
             this.log = new File(fileName);
+            this.writer = new LogWriter(log.toPath(), 64 * 1024, 16 * 1024 * 1024, 200);
         }
     
         @Override
         public void update(String eventType, File file) {
-            System.out.println("Save to log " + log + ": Someone has performed " + eventType + " operation with the following file: " + file.getName());
+            writer.append("Someone has performed " + eventType + " operation with the following file: " + file.getName());
+        }
+
+        @Override
+        public void close() {
+            writer.close();
+        }
+    }
+
+    /**
+     * Appends lines to a log file from a background thread. Callers only
+     * copy the line into a direct buffer; the writer thread swaps it with
+     * a second buffer and writes it to a FileChannel once it is half full
+     * or flushMillis have passed. When the file reaches maxBytes it is
+     * moved aside to "name.1" and a new one is started. If writing fails
+     * the writer stops, and append and close throw the failure.
+     */
+    public class LogWriter implements AutoCloseable {
+        private final Path path;
+        private final long maxBytes;
+        private final long flushMillis;
+        private final int flushBytes;
+        private final Thread thread;
+
+        private ByteBuffer active;
+        private ByteBuffer spare;
+        private boolean closed;
+        // Why the writer thread stopped early, if it did.
+        private volatile IOException failure;
+
+        // Only touched by the writer thread.
+        private FileChannel channel;
+        private long written;
+
+        public LogWriter(Path path, int bufferBytes, long maxBytes, long flushMillis) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.flushMillis = flushMillis;
+            this.flushBytes = bufferBytes / 2;
+            this.active = ByteBuffer.allocateDirect(bufferBytes);
+            this.spare = ByteBuffer.allocateDirect(bufferBytes);
+            this.thread = new Thread(this::run, "log-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queues a line. Waits only if both buffers are full. Throws
+         * UncheckedIOException once the writer has failed, the line and
+         * whatever was still buffered are lost.
+         */
+        public void append(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, active.capacity() - 1);
+            synchronized (this) {
+                try {
+                    while (!closed && active.remaining() < length + 1) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (closed) {
+                    checkFailure();
+                    return;
+                }
+                active.put(bytes, 0, length).put((byte) '\n');
+                if (active.position() >= flushBytes) {
+                    notifyAll();
+                }
+            }
+        }
+
+        private void run() {
+            try {
+                open();
+                while (true) {
+                    ByteBuffer batch;
+                    synchronized (this) {
+                        long deadline = System.currentTimeMillis() + flushMillis;
+                        long left = flushMillis;
+                        while (!closed && active.position() < flushBytes && left > 0) {
+                            wait(left);
+                            left = deadline - System.currentTimeMillis();
+                        }
+                        if (active.position() == 0) {
+                            if (closed) {
+                                break;
+                            }
+                            continue;
+                        }
+                        batch = active;
+                        active = spare;
+                        spare = batch;
+                        notifyAll();
+                    }
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        written += channel.write(batch);
+                    }
+                    batch.clear();
+                    if (written >= maxBytes) {
+                        roll();
+                    }
+                }
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+                closeQuietly();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        private void checkFailure() {
+            IOException failed = failure;
+            if (failed != null) {
+                throw new UncheckedIOException("Writing " + path + " failed", failed);
+            }
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            written = channel.size();
+        }
+
+        private void roll() throws IOException {
+            channel.close();
+            Files.move(path, path.resolveSibling(path.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            open();
+        }
+
+        /**
+         * Writes out everything appended so far and stops the writer thread.
+         * If interrupted while waiting, returns with the interrupt flag set
+         * and leaves the writer thread to finish on its own. Throws
+         * UncheckedIOException if writing failed.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            checkFailure();
         }
     }
         
     
+    /**
+     * Notifications per second from 1 to 64 threads while another thread
+     * keeps subscribing and unsubscribing.
+     */
+    public class NotifyBenchmark {
+        public static void main(String[] args) throws InterruptedException {
+            Observer observer = new Observer();
+            EventManager events = observer.new EventManager("open", "save");
+            LongAdder delivered = new LongAdder();
+            for (int i = 0; i < 4; i++) {
+                events.subscribe("save", (eventType, file) -> delivered.increment());
+            }
+            File file = new File("test.txt");
+
+            for (int threads : new int[] {1, 8, 64}) {
+                AtomicBoolean running = new AtomicBoolean(true);
+                LongAdder notified = new LongAdder();
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    workers[t] = new Thread(() -> {
+                        while (running.get()) {
+                            events.notify("save", file);
+                            notified.increment();
+                        }
+                    });
+                    workers[t].start();
+                }
+                LongAdder churn = new LongAdder();
+                Thread subscriber = new Thread(() -> {
+                    EventListener listener = (eventType, f) -> { };
+                    while (running.get()) {
+                        events.subscribe("save", listener);
+                        events.unsubscribe("save", listener);
+                        churn.increment();
+                    }
+                });
+                subscriber.start();
+
+                Thread.sleep(1000);
+                running.set(false);
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                subscriber.join();
+                System.out.printf("%2d threads: %,d notify/s, %,d subscribe+unsubscribe/s%n",
+                        threads, notified.sum(), churn.sum());
+            }
+        }
+    }
+
+
+    /**
+     * Events per second through the plain EventManager, per-listener queues
+     * and the ring buffer, with two listeners counting deliveries.
+     */
+    public class RingBufferBenchmark {
+        public static void main(String[] args) throws InterruptedException {
+            Observer observer = new Observer();
+            File file = new File("test.txt");
+            int events = 5_000_000;
+
+            for (int round = 0; round < 3; round++) {
+                LongAdder delivered = new LongAdder();
+                EventManager plain = observer.new EventManager("save");
+                plain.subscribe("save", (eventType, f) -> delivered.increment());
+                plain.subscribe("save", (eventType, f) -> delivered.increment());
+                long start = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                    plain.notify("save", file);
+                }
+                report("synchronous", events, System.nanoTime() - start, delivered.sum());
+
+                LongAdder queued = new LongAdder();
+                EventManager async = observer.new EventManager("save");
+                AsyncListener first = async.subscribeAsync("save", (eventType, f) -> queued.increment(),
+                        4096, OverflowPolicy.BLOCK);
+                AsyncListener second = async.subscribeAsync("save", (eventType, f) -> queued.increment(),
+                        4096, OverflowPolicy.BLOCK);
+                start = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                    async.notify("save", file);
+                }
+                first.close();
+                second.close();
+                report("queue per listener", events, System.nanoTime() - start, queued.sum());
+
+                LongAdder consumed = new LongAdder();
+                RingBufferEventManager ring = observer.new RingBufferEventManager(4096, "save");
+                ring.subscribe("save", (eventType, f) -> consumed.increment());
+                ring.subscribe("save", (eventType, f) -> consumed.increment());
+                EventType save = ring.eventType("save");
+                start = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                    ring.notify(save, file);
+                }
+                ring.close();
+                report("ring buffer", events, System.nanoTime() - start, consumed.sum());
+            }
+        }
+
+        private static void report(String name, int events, long nanos, long delivered) {
+            System.out.printf("%-20s %,12.0f events/s (%,d deliveries)%n",
+                    name, events / (nanos / 1e9), delivered);
+        }
+    }
+
+
+    /**
+     * Publishing to 100k pattern subscriptions through the trie against
+     * matching every pattern in turn.
+     */
+    public class TopicBenchmark {
+        public static void main(String[] args) {
+            Observer observer = new Observer();
+            EventManager events = observer.new EventManager();
+            String[] actions = {"open", "save", "close", "rename"};
+            Random random = new Random(48);
+            int subscriptions = 100_000;
+            String[][] patterns = new String[subscriptions][];
+            LongAdder delivered = new LongAdder();
+            EventListener listener = (eventType, file) -> delivered.increment();
+            for (int i = 0; i < subscriptions; i++) {
+                String pattern;
+                switch (random.nextInt(4)) {
+                    case 0: pattern = "file." + random.nextInt(10_000) + ".*"; break;
+                    case 1: pattern = "file." + random.nextInt(10_000) + ".#"; break;
+                    case 2: pattern = "file.*." + actions[random.nextInt(actions.length)]; break;
+                    default: pattern = "dir." + random.nextInt(10_000) + "." + actions[random.nextInt(actions.length)]; break;
+                }
+                patterns[i] = pattern.split("\\.");
+                events.subscribePattern(pattern, listener);
+            }
+
+            String[] topics = new String[200];
+            for (int i = 0; i < topics.length; i++) {
+                topics[i] = (random.nextBoolean() ? "file." : "dir.") + random.nextInt(10_000) + "." + actions[random.nextInt(actions.length)];
+            }
+            File file = new File("test.txt");
+            for (int round = 0; round < 3; round++) {
+                delivered.reset();
+                int publishes = 100_000;
+                long start = System.nanoTime();
+                for (int i = 0; i < publishes; i++) {
+                    events.notify(topics[i % topics.length], file);
+                }
+                long trie = System.nanoTime() - start;
+                long trieHits = delivered.sum();
+
+                int scans = topics.length;
+                long linearHits = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < scans; i++) {
+                    String[] topic = topics[i % topics.length].split("\\.");
+                    for (String[] pattern : patterns) {
+                        if (matches(pattern, 0, topic, 0)) {
+                            linearHits++;
+                        }
+                    }
+                }
+                long linear = System.nanoTime() - start;
+                System.out.printf("trie %.2f us/publish (%.1f matches), linear scan %.2f us/publish (%.1f matches)%n",
+                        trie / 1e3 / publishes, (double) trieHits / publishes,
+                        linear / 1e3 / scans, (double) linearHits / scans);
+            }
+        }
+
+        private static boolean matches(String[] pattern, int p, String[] topic, int t) {
+            if (p == pattern.length) {
+                return t == topic.length;
+            }
+            if (pattern[p].equals("#")) {
+                for (int skip = t; skip <= topic.length; skip++) {
+                    if (matches(pattern, p + 1, topic, skip)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (t == topic.length) {
+                return false;
+            }
+            return (pattern[p].equals("*") || pattern[p].equals(topic[t])) && matches(pattern, p + 1, topic, t + 1);
+        }
+    }
+
+
     public class Demo {
         public static void main(String[] args) {
 
             Observer observer = new Observer();
             Editor editor = observer.new Editor();
-            editor.events.subscribe("open", observer.new LogOpenListener("/path/to/log/file.txt"));
-            editor.events.subscribe("save", observer.new EmailNotificationListener("admin@example.com"));
+            LogOpenListener log = observer.new LogOpenListener(System.getProperty("java.io.tmpdir") + "/observer-demo.log");
+            editor.events.subscribe("open", log);
+            // Sending mail is slow, so it must not hold up saving.
+            AsyncListener email = editor.events.subscribeAsync("save",
+                    observer.new EmailNotificationListener("admin@example.com"), 1024, OverflowPolicy.BLOCK);
 
             try {
                 editor.openFile("test.txt");
                 editor.saveFile();
+                email.close();
+                log.close();
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -1,7 +1,13 @@
 
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import javax.swing.*;
 import java.awt.*;
 
@@ -32,63 +38,145 @@ public class State {
        the player reacts to the user interactions.
       */
 
-        /**
+    public enum Event {
+        LOCK, PLAY, NEXT, PREVIOUS
+    }
+
+    /**
+     * What a transition does to the player; returns the text to show.
+     */
+    public interface Action {
+        String perform(Player player);
+    }
+
+    /*
+     * The states are flyweights: they keep nothing about any one player, so
+     * each exists once per State instance and all of its players share them.
+     * Their transitions are collected into a table once, and handling an
+     * event is two array lookups with no allocation.
+     */
+    private final state[] states;
+    private final state[][] next;
+    private final Action[][] actions;
+
+    final LockedState lockedState = new LockedState(0);
+    final ReadyState readyState = new ReadyState(1);
+    final PlayingState playingState = new PlayingState(2);
+
+    private final List<String> defaultPlaylist;
+    private final String[] defaultAnnouncements;
+
+    public State() {
+        states = new state[] {lockedState, readyState, playingState};
+        next = new state[states.length][Event.values().length];
+        actions = new Action[states.length][Event.values().length];
+        for (state from : states) {
+            from.transitions();
+            for (Event event : Event.values()) {
+                if (next[from.ordinal][event.ordinal()] == null) {
+                    throw new IllegalStateException(from + " has no transition for " + event);
+                }
+            }
+        }
+        List<String> tracks = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) {
+            tracks.add("Track " + i);
+        }
+        defaultPlaylist = List.copyOf(tracks);
+        defaultAnnouncements = announcements(defaultPlaylist);
+    }
+
+    /**
+     * Handles an event for the player according to the transition table.
+     */
+    public String fire(Player player, Event event) {
+        state from = player.state;
+        state to = next[from.ordinal][event.ordinal()];
+        String result = actions[from.ordinal][event.ordinal()].perform(player);
+        if (to != from) {
+            player.state = to;
+            to.enter(player);
+        }
+        return result;
+    }
+
+    private String[] announcements(List<String> playlist) {
+        String[] announcements = new String[playlist.size()];
+        for (int i = 0; i < announcements.length; i++) {
+            announcements[i] = "Playing " + playlist.get(i);
+        }
+        return announcements;
+    }
+
+    /**
      * Common interface for all states.
      */
     public abstract class state {
-        Player player;
+        final int ordinal;
+
+        state(int ordinal) {
+            this.ordinal = ordinal;
+        }
 
         /**
-         * Context passes itself through the state constructor. This may help a
-         * state to fetch some useful context data if needed.
+         * Declares this state's row of the transition table.
          */
-        state(Player player) {
-            this.player = player;
+        abstract void transitions();
+
+        /**
+         * Runs when a player switches to this state.
+         */
+        void enter(Player player) {
         }
 
-        public abstract String onLock();
-        public abstract String onPlay();
-        public abstract String onNext();
-        public abstract String onPrevious();
-    }
+        void on(Event event, state target, Action action) {
+            next[ordinal][event.ordinal()] = target;
+            actions[ordinal][event.ordinal()] = action;
+        }
 
-        
-    /**
-     * Concrete states provide the special implementation for all interface methods.
-     */
-    public class LockedState extends state {
+        public String onLock(Player player) {
+            return fire(player, Event.LOCK);
+        }
 
-        LockedState(Player player) {
-            super(player);
-            player.setPlaying(false);
+        public String onPlay(Player player) {
+            return fire(player, Event.PLAY);
         }
 
-        @Override
-        public String onLock() {
-            if (player.isPlaying()) {
+        public String onNext(Player player) {
+            return fire(player, Event.NEXT);
+        }
 
-                State parentState = new State();
-                player.changeState(new ReadyState(player));
-                return "Stop playing";
-            } else {
-                return "Locked...";
-            }
+        public String onPrevious(Player player) {
+            return fire(player, Event.PREVIOUS);
         }
 
         @Override
-        public String onPlay() {
-            player.changeState(new ReadyState(player));
-            return "Ready";
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+        
+    /**
+     * Concrete states provide the special implementation for all interface methods.
+     */
+    public class LockedState extends state {
+
+        LockedState(int ordinal) {
+            super(ordinal);
         }
 
         @Override
-        public String onNext() {
-            return "Locked...";
+        void enter(Player player) {
+            player.setPlaying(false);
         }
 
         @Override
-        public String onPrevious() {
-            return "Locked...";
+        void transitions() {
+            on(Event.LOCK, this, player -> "Locked...");
+            on(Event.PLAY, readyState, player -> "Ready");
+            on(Event.NEXT, this, player -> "Locked...");
+            on(Event.PREVIOUS, this, player -> "Locked...");
         }
     }
 
@@ -98,54 +186,66 @@ public class State {
      */
     public class ReadyState extends state {
 
-        public ReadyState(Player player) {
-            super(player);
+        ReadyState(int ordinal) {
+            super(ordinal);
         }
 
         @Override
-        public String onLock() {
-            player.changeState(new LockedState(player));
-            return "Locked...";
+        void transitions() {
+            on(Event.LOCK, lockedState, player -> "Locked...");
+            on(Event.PLAY, playingState, Player::startPlayback);
+            on(Event.NEXT, this, player -> "Locked...");
+            on(Event.PREVIOUS, this, player -> "Locked...");
         }
+    }
 
-        @Override
-        public String onPlay() {
-            String action = player.startPlayback();
-            player.changeState(new PlayingState(player));
-            return action;
-        }
+    public class PlayingState extends state {
 
-        @Override
-        public String onNext() {
-            return "Locked...";
+        PlayingState(int ordinal) {
+            super(ordinal);
         }
 
         @Override
-        public String onPrevious() {
-            return "Locked...";
+        void transitions() {
+            on(Event.LOCK, lockedState, player -> {
+                player.setCurrentTrackAfterStop();
+                return "Stop playing";
+            });
+            on(Event.PLAY, readyState, player -> "Paused...");
+            on(Event.NEXT, this, Player::nextTrack);
+            on(Event.PREVIOUS, this, Player::previousTrack);
         }
     }
 
     public class Player {
-        private State state;
+        private state state;
         private boolean playing = false;
-        private List<String> playlist = new ArrayList<>();
+        // Immutable, players may share it and the announcements must match it.
+        private final List<String> playlist;
+        // "Playing <track>" for each track, built once per playlist.
+        private final String[] announcements;
         private int currentTrack = 0;
     
         public Player() {
+            this(defaultPlaylist, defaultAnnouncements);
+        }
 
-            this.state = new ReadyState(this);
+        public Player(List<String> playlist) {
+            this(List.copyOf(playlist), null);
+        }
+
+        private Player(List<String> playlist, String[] announcements) {
+            this.state = readyState;
             setPlaying(true);
-            for (int i = 1; i <= 12; i++) {
-                playlist.add("Track " + i);
-            }
+            this.playlist = playlist;
+            this.announcements = announcements != null ? announcements : announcements(playlist);
         }
     
-        public void changeState(State state) {
-            this.state = state;
+        public String fire(Event event) {
+            return State.this.fire(this, event);
         }
     
-        public State getState() {
+        public state getState() {
             return state;
         }
     
@@ -156,25 +256,29 @@ public class State {
         public boolean isPlaying() {
             return playing;
         }
+
+        public List<String> getPlaylist() {
+            return playlist;
+        }
     
         public String startPlayback() {
-            return "Playing " + playlist.get(currentTrack);
+            return announcements[currentTrack];
         }
     
         public String nextTrack() {
             currentTrack++;
-            if (currentTrack > playlist.size() - 1) {
+            if (currentTrack > announcements.length - 1) {
                 currentTrack = 0;
             }
-            return "Playing " + playlist.get(currentTrack);
+            return announcements[currentTrack];
         }
     
         public String previousTrack() {
             currentTrack--;
             if (currentTrack < 0) {
-                currentTrack = playlist.size() - 1;
+                currentTrack = announcements.length - 1;
             }
-            return "Playing " + playlist.get(currentTrack);
+            return announcements[currentTrack];
         }
     
         public void setCurrentTrackAfterStop() {
@@ -182,6 +286,289 @@ public class State {
         }
     }
 
+    /**
+     * Drives a million players with random events, reporting transitions
+     * per second and bytes allocated per transition.
+     */
+    public class TransitionBenchmark {
+        public static void main(String[] args) {
+            State machine = new State();
+            Player[] players = new Player[1_000_000];
+            for (int i = 0; i < players.length; i++) {
+                players[i] = machine.new Player();
+            }
+            Event[] events = Event.values();
+            int[] script = new int[1 << 20];
+            java.util.Random random = new java.util.Random(49);
+            for (int i = 0; i < script.length; i++) {
+                script[i] = random.nextInt(events.length);
+            }
+
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            for (int round = 0; round < 5; round++) {
+                int transitions = 10_000_000;
+                long length = 0;
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                for (int i = 0; i < transitions; i++) {
+                    length += machine.fire(players[i % players.length], events[script[i & (script.length - 1)]]).length();
+                }
+                long time = System.nanoTime() - start;
+                bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+                System.out.printf("%,.0f transitions/s, %.2f bytes/transition (%d)%n",
+                        transitions / (time / 1e9), (double) bytes / transitions, length % 10);
+            }
+        }
+    }
+
+    /**
+     * Runs many playback sessions at once. Players are spread over shards
+     * by session ID; each shard owns its players outright and handles the
+     * events sent to them one at a time from its own mailbox on its own
+     * thread, so player state needs no locks and shards scale with cores.
+     * A session's player is created by the first event sent to it and
+     * dropped by end().
+     */
+    public class SessionEngine implements AutoCloseable {
+        private final Shard[] shards;
+        private volatile boolean closed = false;
+
+        private class Message {
+            final long session;
+            // Null for the message that ends the session.
+            final Event event;
+            // Null for events nobody waits on.
+            final CompletableFuture<String> reply;
+
+            Message(long session, Event event, CompletableFuture<String> reply) {
+                this.session = session;
+                this.event = event;
+                this.reply = reply;
+            }
+        }
+
+        private class Shard {
+            private final Map<Long, Player> players = new HashMap<>();
+            private final BlockingQueue<Message> mailbox;
+            private final Thread thread;
+            private final Message stop = new Message(0, null, null);
+            // Set before the shard fails what is left in its mailbox.
+            private volatile boolean stopped = false;
+
+            Shard(int index, int capacity) {
+                mailbox = new ArrayBlockingQueue<>(capacity);
+                thread = new Thread(this::run, "session-shard-" + index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            private void run() {
+                List<Message> batch = new ArrayList<>();
+                int next = 0;
+                try {
+                    while (true) {
+                        batch.add(mailbox.take());
+                        mailbox.drainTo(batch, 1023);
+                        for (next = 0; next < batch.size(); next++) {
+                            if (batch.get(next) == stop) {
+                                next++;
+                                return;
+                            }
+                            handle(batch.get(next));
+                        }
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    // Engine closed.
+                } finally {
+                    stopped = true;
+                    batch.subList(0, Math.min(next, batch.size())).clear();
+                    mailbox.drainTo(batch);
+                    for (Message message : batch) {
+                        reject(message);
+                    }
+                    players.clear();
+                }
+            }
+
+            private void handle(Message message) {
+                if (message.event == null) {
+                    players.remove(message.session);
+                    return;
+                }
+                Player player = players.get(message.session);
+                if (player == null) {
+                    player = new Player();
+                    players.put(message.session, player);
+                }
+                try {
+                    String result = fire(player, message.event);
+                    if (message.reply != null) {
+                        message.reply.complete(result);
+                    }
+                } catch (RuntimeException e) {
+                    if (message.reply != null) {
+                        message.reply.completeExceptionally(e);
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        public SessionEngine(int shards, int mailboxCapacity) {
+            this.shards = new Shard[shards];
+            for (int i = 0; i < shards; i++) {
+                this.shards[i] = new Shard(i, mailboxCapacity);
+            }
+        }
+
+        /**
+         * Sends an event and returns what the player answered.
+         */
+        public CompletableFuture<String> send(long session, Event event) {
+            CompletableFuture<String> reply = new CompletableFuture<>();
+            enqueue(new Message(session, event, reply));
+            return reply;
+        }
+
+        /**
+         * Sends an event without waiting for the answer.
+         */
+        public void post(long session, Event event) {
+            if (closed) {
+                throw new IllegalStateException("Session engine is closed");
+            }
+            enqueue(new Message(session, event, null));
+        }
+
+        /**
+         * Ends the session, dropping its player once earlier events are handled.
+         */
+        public void end(long session) {
+            enqueue(new Message(session, null, null));
+        }
+
+        public CompletableFuture<String> onLock(long session) {
+            return send(session, Event.LOCK);
+        }
+
+        public CompletableFuture<String> onPlay(long session) {
+            return send(session, Event.PLAY);
+        }
+
+        public CompletableFuture<String> onNext(long session) {
+            return send(session, Event.NEXT);
+        }
+
+        public CompletableFuture<String> onPrevious(long session) {
+            return send(session, Event.PREVIOUS);
+        }
+
+        /**
+         * Waits for room in the shard's mailbox, giving up once the engine is
+         * closed. A message that slips in after its shard stopped is taken
+         * back out and failed here, since nobody will handle it.
+         */
+        private void enqueue(Message message) {
+            long hash = message.session * 0x9E3779B97F4A7C15L;
+            Shard shard = shards[(int) ((hash >>> 32) % shards.length)];
+            if (closed) {
+                reject(message);
+                return;
+            }
+            try {
+                while (!shard.mailbox.offer(message, 10, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        reject(message);
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(message, e);
+                return;
+            }
+            if (shard.stopped && shard.mailbox.remove(message)) {
+                reject(message);
+            }
+        }
+
+        private void reject(Message message) {
+            fail(message, new IllegalStateException("Session engine is closed"));
+        }
+
+        private void fail(Message message, Exception e) {
+            if (message.reply != null) {
+                message.reply.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Handles everything sent before the call, then stops the shard
+         * threads. Events sent afterwards fail with IllegalStateException.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                for (Shard shard : shards) {
+                    shard.mailbox.put(shard.stop);
+                }
+                for (Shard shard : shards) {
+                    shard.thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Posts 10M events to 100k sessions from four threads, with one shard
+     * and with one shard per processor.
+     */
+    public class SessionBenchmark {
+        public static void main(String[] args) throws Exception {
+            State machine = new State();
+            Event[] events = Event.values();
+            int sessions = 100_000;
+            int perProducer = 2_500_000;
+            int producers = 4;
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int shards : new int[] {1, cores}) {
+                for (int round = 0; round < 2; round++) {
+                    SessionEngine engine = machine.new SessionEngine(shards, 1 << 16);
+                    Thread[] threads = new Thread[producers];
+                    long start = System.nanoTime();
+                    for (int t = 0; t < producers; t++) {
+                        int seed = t;
+                        threads[t] = new Thread(() -> {
+                            java.util.Random random = new java.util.Random(seed);
+                            for (int i = 0; i < perProducer; i++) {
+                                engine.post(random.nextInt(sessions), events[random.nextInt(events.length)]);
+                            }
+                        });
+                        threads[t].start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    String last = engine.onPlay(0).get();
+                    engine.close();
+                    long time = System.nanoTime() - start;
+                    System.out.printf("%2d shard(s): %,.0f events/s (session 0: %s)%n",
+                            shards, producers * (double) perProducer / (time / 1e9), last);
+                }
+            }
+        }
+    }
+
     public class UI {
         private Player player;
         private static JTextField textField = new JTextField();
@@ -204,13 +591,13 @@ public class State {
             // the outcome will depend on what state is currently active, since all
             // states can handle the input differently.
             JButton play = new JButton("Play");
-            play.addActionListener(e -> textField.setText(player.getState().onPlay()));
+            play.addActionListener(e -> textField.setText(player.getState().onPlay(player)));
             JButton stop = new JButton("Stop");
-            stop.addActionListener(e -> textField.setText(player.getState().onLock()));
+            stop.addActionListener(e -> textField.setText(player.getState().onLock(player)));
             JButton next = new JButton("Next");
-            next.addActionListener(e -> textField.setText(player.getState().onNext()));
+            next.addActionListener(e -> textField.setText(player.getState().onNext(player)));
             JButton prev = new JButton("Prev");
-            prev.addActionListener(e -> textField.setText(player.getState().onPrevious()));
+            prev.addActionListener(e -> textField.setText(player.getState().onPrevious(player)));
             frame.setVisible(true);
             frame.setSize(300, 100);
             buttons.add(play);
@@ -1,7 +1,23 @@
 import java.awt.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 
 import javax.swing.*;
@@ -52,11 +68,102 @@ public class Composite {
     }
 
 
+    // Strokes are immutable, so every shape can share the same two.
+    static final Stroke PLAIN_STROKE = new BasicStroke();
+    static final Stroke SELECTION_STROKE = new BasicStroke(1.0f,
+            BasicStroke.CAP_BUTT,
+            BasicStroke.JOIN_MITER,
+            2.0f, new float[] {2.0f}, 0.0f);
+
+    /**
+     * Painting state for one frame: the stroke and color last applied and a
+     * small cache of colors by ARGB value, so runs of equally styled shapes
+     * cost no Graphics2D calls and no allocations. Whoever creates a context
+     * must route every style change through it while it is in use.
+     */
+    public class RenderContext {
+        private final Graphics2D graphics;
+        private Color[] colorCache;
+        private Stroke stroke;
+        private Color color;
+        private int stateChanges = 0;
+
+        public RenderContext(Graphics graphics) {
+            this.graphics = (Graphics2D) graphics;
+            this.stroke = this.graphics.getStroke();
+            this.color = this.graphics.getColor();
+        }
+
+        public Graphics2D graphics() {
+            return graphics;
+        }
+
+        public void useSelectionStyle() {
+            use(SELECTION_STROKE, Color.LIGHT_GRAY);
+        }
+
+        public void usePlainStyle(Color color) {
+            use(PLAIN_STROKE, color);
+        }
+
+        public void usePlainStyle(int argb) {
+            use(PLAIN_STROKE, color(argb));
+        }
+
+        /**
+         * Number of setStroke and setColor calls actually made.
+         */
+        public int stateChanges() {
+            return stateChanges;
+        }
+
+        private Color color(int argb) {
+            if (colorCache == null) {
+                colorCache = new Color[256];
+            }
+            int slot = (argb * 0x9E3779B9) >>> 24;
+            Color cached = colorCache[slot];
+            if (cached == null || cached.getRGB() != argb) {
+                cached = new Color(argb, true);
+                colorCache[slot] = cached;
+            }
+            return cached;
+        }
+
+        private void use(Stroke stroke, Color color) {
+            if (stroke != this.stroke) {
+                graphics.setStroke(stroke);
+                this.stroke = stroke;
+                stateChanges++;
+            }
+            if (!color.equals(this.color)) {
+                graphics.setColor(color);
+                this.color = color;
+                stateChanges++;
+            }
+        }
+    }
+
+    /**
+     * Applies a style without a context, comparing against what the graphics
+     * already has so equally styled neighbours don't reset it.
+     */
+    static void applyStyle(Graphics graphics, Stroke stroke, Color color) {
+        Graphics2D g2 = (Graphics2D) graphics;
+        if (g2.getStroke() != stroke) {
+            g2.setStroke(stroke);
+        }
+        if (!color.equals(g2.getColor())) {
+            g2.setColor(color);
+        }
+    }
+
     abstract class BaseShape implements Shape {
         public int x;
         public int y;
         public Color color;
         private boolean selected = false;
+        CompoundShape parent;
     
         BaseShape(int x, int y, Color color) {
             this.x = x;
@@ -88,6 +195,13 @@ public class Composite {
         public void move(int x, int y) {
             this.x += x;
             this.y += y;
+            moved();
+        }
+
+        void moved() {
+            if (parent != null) {
+                parent.childMoved(this);
+            }
         }
     
         @Override
@@ -112,20 +226,11 @@ public class Composite {
         }
     
         void enableSelectionStyle(Graphics graphics) {
-            graphics.setColor(Color.LIGHT_GRAY);
-    
-            Graphics2D g2 = (Graphics2D) graphics;
-            float[] dash1 = {2.0f};
-            g2.setStroke(new BasicStroke(1.0f,
-                    BasicStroke.CAP_BUTT,
-                    BasicStroke.JOIN_MITER,
-                    2.0f, dash1, 0.0f));
+            applyStyle(graphics, SELECTION_STROKE, Color.LIGHT_GRAY);
         }
     
         void disableSelectionStyle(Graphics graphics) {
-            graphics.setColor(color);
-            Graphics2D g2 = (Graphics2D) graphics;
-            g2.setStroke(new BasicStroke());
+            applyStyle(graphics, PLAIN_STROKE, color);
         }
     
     
@@ -195,7 +300,27 @@ public class Composite {
     }
 
     public class CompoundShape extends BaseShape {
+    // Below this many children a linear scan beats maintaining a grid.
+    private static final int INDEX_THRESHOLD = 32;
+
+    // Subtrees smaller than this on screen are drawn as one filled rectangle.
+    private static final double DETAIL_PIXELS = 2.0;
+    // Selection outlines and dots reach slightly past the shape bounds.
+    private static final int OUTLINE = 2;
+    // Child lists longer than this are split across the common fork/join pool.
+    private static final int PARALLEL_THRESHOLD = 512;
+
     protected List<Shape> children = new ArrayList<>();
+    private SpatialGrid grid;
+    private boolean moving;
+
+    // Cached bounds. Whenever a compound is invalid, so are all its ancestors,
+    // which lets invalidation stop at the first compound already invalid.
+    private boolean boundsValid;
+    private int minX, minY, maxX, maxY;
+    // Set once bounds and grids of the whole subtree are built; cleared
+    // together with boundsValid.
+    private boolean prepared;
 
     public CompoundShape(Shape... components) {
         super(0, 0, Color.BLACK);
@@ -204,133 +329,1526 @@ public class Composite {
 
     public void add(Shape component) {
         children.add(component);
+        invalidateBounds();
+        if (component instanceof BaseShape) {
+            ((BaseShape) component).parent = this;
+        }
+        if (grid != null) {
+            grid.insert(component);
+        }
     }
 
     public void add(Shape... components) {
-        children.addAll(Arrays.asList(components));
+        for (Shape component : components) {
+            add(component);
+        }
     }
 
     public void remove(Shape child) {
-        children.remove(child);
+        if (children.remove(child)) {
+            invalidateBounds();
+            if (child instanceof BaseShape) {
+                ((BaseShape) child).parent = null;
+            }
+            if (grid != null) {
+                grid.remove(child);
+            }
+        }
     }
 
     public void remove(Shape... components) {
-        children.removeAll(Arrays.asList(components));
+        for (Shape component : components) {
+            remove(component);
+        }
     }
 
     public void clear() {
+        for (Shape child : children) {
+            if (child instanceof BaseShape) {
+                ((BaseShape) child).parent = null;
+            }
+        }
         children.clear();
+        grid = null;
+        invalidateBounds();
     }
 
-    @Override
-    public int getX() {
-        if (children.size() == 0) {
-            return 0;
+    /**
+     * Called by a child whose position changed, so the grid and everything
+     * up the parent chain can follow.
+     */
+    void childMoved(Shape child) {
+        if (moving) {
+            return;
+        }
+        invalidateBounds();
+        if (grid != null) {
+            grid.update(child);
+        }
+        moved();
+    }
+
+    private void invalidateBounds() {
+        for (CompoundShape shape = this; shape != null && shape.boundsValid; shape = shape.parent) {
+            shape.boundsValid = false;
+            shape.prepared = false;
+        }
+    }
+
+    private void ensureBounds() {
+        if (boundsValid) {
+            return;
         }
-        int x = children.get(0).getX();
+        if (children.isEmpty()) {
+            minX = minY = maxX = maxY = 0;
+        } else {
+            int[] bounds = children.size() > PARALLEL_THRESHOLD
+                    ? new BoundsTask(0, children.size()).invoke()
+                    : bounds(0, children.size());
+            minX = bounds[0];
+            minY = bounds[1];
+            maxX = bounds[2];
+            maxY = bounds[3];
+        }
+        boundsValid = true;
+    }
+
+    /**
+     * Builds the lazy bounds and grids of the whole subtree up front, so
+     * several threads can paint it at once without racing to fill them.
+     * The scene must not change while they paint.
+     */
+    void prepareForPaint() {
+        if (prepared) {
+            return;
+        }
+        ensureBounds();
+        grid();
         for (Shape child : children) {
-            if (child.getX() < x) {
-                x = child.getX();
+            if (child instanceof CompoundShape) {
+                ((CompoundShape) child).prepareForPaint();
             }
         }
-        return x;
+        prepared = true;
     }
 
-    @Override
-    public int getY() {
-        if (children.size() == 0) {
-            return 0;
+    private int[] bounds(int from, int to) {
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int i = from; i < to; i++) {
+            Shape child = children.get(i);
+            int x = child.getX();
+            int y = child.getY();
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.max(bounds[2], x + child.getWidth());
+            bounds[3] = Math.max(bounds[3], y + child.getHeight());
         }
-        int y = children.get(0).getY();
-        for (Shape child : children) {
-            if (child.getY() < y) {
-                y = child.getY();
+        return bounds;
+    }
+
+    /**
+     * Runs the action on every child, splitting long child lists across the
+     * common pool. Each child is visited by exactly one task, so a nested
+     * compound's caches are only ever touched by the thread visiting it.
+     */
+    private void forEachChild(Consumer<Shape> action) {
+        if (children.size() > PARALLEL_THRESHOLD) {
+            new ForEachTask(0, children.size(), action).invoke();
+        } else {
+            for (Shape child : children) {
+                action.accept(child);
             }
         }
-        return y;
     }
 
-    @Override
-    public int getWidth() {
-        int maxWidth = 0;
-        int x = getX();
-        for (Shape child : children) {
-            int childsRelativeX = child.getX() - x;
-            int childWidth = childsRelativeX + child.getWidth();
-            if (childWidth > maxWidth) {
-                maxWidth = childWidth;
+    private class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final Consumer<Shape> action;
+
+        ForEachTask(int from, int to, Consumer<Shape> action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    action.accept(children.get(i));
+                }
+                return;
             }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ForEachTask(from, mid, action), new ForEachTask(mid, to, action));
         }
-        return maxWidth;
     }
 
-    @Override
-    public int getHeight() {
-        int maxHeight = 0;
-        int y = getY();
-        for (Shape child : children) {
-            int childsRelativeY = child.getY() - y;
-            int childHeight = childsRelativeY + child.getHeight();
-            if (childHeight > maxHeight) {
-                maxHeight = childHeight;
+    private class BoundsTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        BoundsTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return bounds(from, to);
             }
+            int mid = (from + to) >>> 1;
+            BoundsTask left = new BoundsTask(from, mid);
+            left.fork();
+            int[] right = new BoundsTask(mid, to).compute();
+            int[] bounds = left.join();
+            bounds[0] = Math.min(bounds[0], right[0]);
+            bounds[1] = Math.min(bounds[1], right[1]);
+            bounds[2] = Math.max(bounds[2], right[2]);
+            bounds[3] = Math.max(bounds[3], right[3]);
+            return bounds;
         }
-        return maxHeight;
+    }
+
+    private SpatialGrid grid() {
+        if (grid == null && children.size() >= INDEX_THRESHOLD) {
+            grid = new SpatialGrid();
+            for (Shape child : children) {
+                grid.insert(child);
+            }
+        }
+        return grid;
+    }
+
+    @Override
+    public int getX() {
+        ensureBounds();
+        return minX;
+    }
+
+    @Override
+    public int getY() {
+        ensureBounds();
+        return minY;
+    }
+
+    @Override
+    public int getWidth() {
+        ensureBounds();
+        return Math.max(0, maxX - minX);
+    }
+
+    @Override
+    public int getHeight() {
+        ensureBounds();
+        return Math.max(0, maxY - minY);
     }
 
     @Override
     public void move(int x, int y) {
-        for (Shape child : children) {
-            child.move(x, y);
+        // Children report every move; rebuild the grid lazily instead.
+        moving = true;
+        forEachChild(child -> child.move(x, y));
+        moving = false;
+        grid = null;
+        prepared = false;
+        // Empty compounds keep their zero bounds, as ensureBounds would compute.
+        if (boundsValid && !children.isEmpty()) {
+            minX += x;
+            maxX += x;
+            minY += y;
+            maxY += y;
         }
+        moved();
     }
 
     @Override
     public boolean isInsideBounds(int x, int y) {
-        for (Shape child : children) {
-            if (child.isInsideBounds(x, y)) {
-                return true;
-            }
-        }
-        return false;
+        return getChildAt(x, y) != null;
     }
 
     @Override
     public void unSelect() {
         super.unSelect();
+        forEachChild(Shape::unSelect);
+    }
+
+    /**
+     * Gives every leaf in this subtree the same color.
+     */
+    public void recolor(Color color) {
+        this.color = color;
+        forEachChild(child -> {
+            if (child instanceof CompoundShape) {
+                ((CompoundShape) child).recolor(color);
+            } else if (child instanceof BaseShape) {
+                ((BaseShape) child).color = color;
+            }
+        });
+    }
+
+    /**
+     * Selects the children lying entirely inside the area, as a rubber-band
+     * selection would.
+     */
+    public void selectIn(java.awt.Rectangle area) {
+        forEachChild(child -> {
+            if (area.contains(child.getX(), child.getY(), child.getWidth(), child.getHeight())) {
+                child.select();
+            }
+        });
+    }
+
+    /**
+     * Returns the first child, in paint order, that contains the point.
+     */
+    public Shape getChildAt(int x, int y) {
+        SpatialGrid grid = grid();
+        if (grid != null) {
+            return grid.childAt(x, y);
+        }
         for (Shape child : children) {
-            child.unSelect();
+            if (child.isInsideBounds(x, y)) {
+                return child;
+            }
         }
+        return null;
     }
 
-    public boolean selectChildAt(int x, int y) {
+    /**
+     * Returns the children whose bounds intersect the area, in paint order.
+     */
+    public List<Shape> getChildrenIn(java.awt.Rectangle area) {
+        SpatialGrid grid = grid();
+        if (grid != null) {
+            return grid.query(area);
+        }
+        List<Shape> found = new ArrayList<>();
         for (Shape child : children) {
-            if (child.isInsideBounds(x, y)) {
-                child.select();
-                return true;
+            if (area.intersects(child.getX(), child.getY(), child.getWidth(), child.getHeight())) {
+                found.add(child);
             }
         }
+        return found;
+    }
+
+    public boolean selectChildAt(int x, int y) {
+        Shape child = getChildAt(x, y);
+        if (child != null) {
+            child.select();
+            return true;
+        }
         return false;
     }
 
+    /**
+     * Skips the whole subtree when its bounds miss the clip, draws it as a
+     * single rectangle when it would cover less than DETAIL_PIXELS on screen,
+     * and asks the grid for just the visible children when there is one.
+     */
     @Override
     public void paint(Graphics graphics) {
+        if (children.isEmpty()) {
+            return;
+        }
+        java.awt.Rectangle clip = graphics.getClipBounds();
+        if (clip != null && !clip.intersects(getX() - OUTLINE, getY() - OUTLINE,
+                getWidth() + 2 * OUTLINE, getHeight() + 2 * OUTLINE)) {
+            return;
+        }
+        if (!isSelected() && isTinyOnScreen(graphics)) {
+            graphics.setColor(leafColor());
+            graphics.fillRect(getX(), getY(), Math.max(1, getWidth()), Math.max(1, getHeight()));
+            return;
+        }
+
         if (isSelected()) {
             enableSelectionStyle(graphics);
             graphics.drawRect(getX() - 1, getY() - 1, getWidth() + 1, getHeight() + 1);
             disableSelectionStyle(graphics);
         }
 
+        if (clip != null && grid() != null) {
+            java.awt.Rectangle area = new java.awt.Rectangle(clip);
+            area.grow(OUTLINE, OUTLINE);
+            for (Shape child : getChildrenIn(area)) {
+                child.paint(graphics);
+            }
+            return;
+        }
         for (Shape child : children) {
             child.paint(graphics);
         }
         }
+
+    private boolean isTinyOnScreen(Graphics graphics) {
+        double scaleX = 1;
+        double scaleY = 1;
+        if (graphics instanceof Graphics2D) {
+            java.awt.geom.AffineTransform transform = ((Graphics2D) graphics).getTransform();
+            scaleX = Math.hypot(transform.getScaleX(), transform.getShearY());
+            scaleY = Math.hypot(transform.getShearX(), transform.getScaleY());
+        }
+        return getWidth() * scaleX < DETAIL_PIXELS && getHeight() * scaleY < DETAIL_PIXELS;
+    }
+
+    private Color leafColor() {
+        Shape first = children.get(0);
+        if (first instanceof CompoundShape && !((CompoundShape) first).children.isEmpty()) {
+            return ((CompoundShape) first).leafColor();
+        }
+        return first instanceof BaseShape ? ((BaseShape) first).color : color;
+    }
+    }
+
+
+    /**
+     * Uniform grid over the children of one compound shape. Each child is
+     * filed under every cell its bounds cover; children spanning too many
+     * cells go to a separate list that is always checked. Entries carry
+     * their insertion order so lookups can return the same child a linear
+     * scan over the children list would.
+     */
+    class SpatialGrid {
+        private static final int CELL_SIZE = 64;
+        private static final int MAX_CELLS = 64;
+
+        private final Map<Long, List<Entry>> cells = new HashMap<>();
+        private final List<Entry> oversized = new ArrayList<>();
+        private final Map<Shape, Entry> entries = new IdentityHashMap<>();
+        private long nextOrder = 0;
+
+        private class Entry {
+            final Shape shape;
+            final long order;
+            int x0, y0, x1, y1;
+
+            Entry(Shape shape, long order) {
+                this.shape = shape;
+                this.order = order;
+            }
+        }
+
+        void insert(Shape shape) {
+            Entry entry = new Entry(shape, nextOrder++);
+            entries.put(shape, entry);
+            file(entry);
+        }
+
+        void remove(Shape shape) {
+            Entry entry = entries.remove(shape);
+            if (entry != null) {
+                unfile(entry);
+            }
+        }
+
+        void update(Shape shape) {
+            Entry entry = entries.get(shape);
+            if (entry != null) {
+                unfile(entry);
+                file(entry);
+            }
+        }
+
+        Shape childAt(int x, int y) {
+            Entry best = null;
+            List<Entry> cell = cells.get(key(Math.floorDiv(x, CELL_SIZE), Math.floorDiv(y, CELL_SIZE)));
+            if (cell != null) {
+                best = closest(cell, x, y, best);
+            }
+            best = closest(oversized, x, y, best);
+            return best == null ? null : best.shape;
+        }
+
+        private Entry closest(List<Entry> candidates, int x, int y, Entry best) {
+            for (Entry entry : candidates) {
+                if ((best == null || entry.order < best.order) && entry.shape.isInsideBounds(x, y)) {
+                    best = entry;
+                }
+            }
+            return best;
+        }
+
+        List<Shape> query(java.awt.Rectangle area) {
+            Map<Shape, Entry> found = new IdentityHashMap<>();
+            int x0 = Math.floorDiv(area.x, CELL_SIZE);
+            int y0 = Math.floorDiv(area.y, CELL_SIZE);
+            int x1 = Math.floorDiv(area.x + area.width, CELL_SIZE);
+            int y1 = Math.floorDiv(area.y + area.height, CELL_SIZE);
+            for (int cx = x0; cx <= x1; cx++) {
+                for (int cy = y0; cy <= y1; cy++) {
+                    List<Entry> cell = cells.get(key(cx, cy));
+                    if (cell != null) {
+                        collect(cell, area, found);
+                    }
+                }
+            }
+            collect(oversized, area, found);
+            List<Entry> sorted = new ArrayList<>(found.values());
+            sorted.sort((a, b) -> Long.compare(a.order, b.order));
+            List<Shape> shapes = new ArrayList<>(sorted.size());
+            for (Entry entry : sorted) {
+                shapes.add(entry.shape);
+            }
+            return shapes;
+        }
+
+        private void collect(List<Entry> candidates, java.awt.Rectangle area, Map<Shape, Entry> found) {
+            for (Entry entry : candidates) {
+                Shape shape = entry.shape;
+                if (area.intersects(shape.getX(), shape.getY(), shape.getWidth(), shape.getHeight())) {
+                    found.put(shape, entry);
+                }
+            }
+        }
+
+        private void file(Entry entry) {
+            Shape shape = entry.shape;
+            entry.x0 = Math.floorDiv(shape.getX(), CELL_SIZE);
+            entry.y0 = Math.floorDiv(shape.getY(), CELL_SIZE);
+            entry.x1 = Math.floorDiv(shape.getX() + shape.getWidth(), CELL_SIZE);
+            entry.y1 = Math.floorDiv(shape.getY() + shape.getHeight(), CELL_SIZE);
+            if (isOversized(entry)) {
+                oversized.add(entry);
+                return;
+            }
+            for (int cx = entry.x0; cx <= entry.x1; cx++) {
+                for (int cy = entry.y0; cy <= entry.y1; cy++) {
+                    cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(entry);
+                }
+            }
+        }
+
+        private void unfile(Entry entry) {
+            if (isOversized(entry)) {
+                oversized.remove(entry);
+                return;
+            }
+            for (int cx = entry.x0; cx <= entry.x1; cx++) {
+                for (int cy = entry.y0; cy <= entry.y1; cy++) {
+                    long key = key(cx, cy);
+                    List<Entry> cell = cells.get(key);
+                    cell.remove(entry);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+
+        private boolean isOversized(Entry entry) {
+            return (long) (entry.x1 - entry.x0 + 1) * (entry.y1 - entry.y0 + 1) > MAX_CELLS;
+        }
+
+        private long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+        }
+    }
+
+
+    /**
+     * Packed alternative to a tree of Dot, Rectangle and CompoundShape
+     * objects. Leaves live in parallel arrays and every compound is a
+     * contiguous range of leaves, so moving a group is one loop over ints.
+     * Shapes are exposed through small views that hold nothing but an index.
+     *
+     * Leaves and groups can only be appended: a group collects the leaves
+     * added between beginGroup() and endGroup(). Group 0 is the root and
+     * stays open. Unlike an empty CompoundShape, an empty group has no
+     * position and does not count towards its parent's bounds.
+     */
+    public class PackedScene {
+        private static final byte DOT = 0;
+        private static final byte RECTANGLE = 1;
+        private static final int DOT_SIZE = 3;
+
+        private byte[] kinds = new byte[16];
+        private int[] xs = new int[16];
+        private int[] ys = new int[16];
+        private int[] widths = new int[16];
+        private int[] heights = new int[16];
+        private int[] colors = new int[16];
+        private final BitSet selected = new BitSet();
+        private int leaves = 0;
+        private int[] styleOrder;
+
+        // Groups are numbered in pre-order, so a group's descendants directly
+        // follow it. groupEnd is -1 while the group is still open.
+        private int[] groupStart = new int[4];
+        private int[] groupEnd = new int[4];
+        private int[] groupLast = new int[4];
+        private int[] firstChild = new int[4];
+        private int[] nextSibling = new int[4];
+        private int[] lastChild = new int[4];
+        private final BitSet groupSelected = new BitSet();
+        private int groups = 0;
+        private int[] open = new int[4];
+        private int depth = 0;
+
+        public PackedScene() {
+            newGroup(-1);
+        }
+
+        public void beginGroup() {
+            newGroup(open[depth - 1]);
+        }
+
+        public void endGroup() {
+            if (depth == 1) {
+                throw new IllegalStateException("The root group cannot be closed");
+            }
+            int group = open[--depth];
+            groupEnd[group] = leaves;
+            groupLast[group] = groups - 1;
+        }
+
+        public void addDot(int x, int y, Color color) {
+            addLeaf(DOT, x, y, DOT_SIZE, DOT_SIZE, color);
+        }
+
+        public void addRectangle(int x, int y, int width, int height, Color color) {
+            addLeaf(RECTANGLE, x, y, width, height, color);
+        }
+
+        /**
+         * Packs an object tree built from Dot, Rectangle and CompoundShape.
+         */
+        public void add(Shape shape) {
+            if (shape instanceof CompoundShape) {
+                int group = groups;
+                beginGroup();
+                for (Shape child : ((CompoundShape) shape).children) {
+                    add(child);
+                }
+                endGroup();
+                if (shape.isSelected()) {
+                    groupSelected.set(group);
+                }
+                return;
+            }
+            if (shape instanceof Dot) {
+                addDot(shape.getX(), shape.getY(), ((Dot) shape).color);
+            } else if (shape instanceof Rectangle) {
+                addRectangle(shape.getX(), shape.getY(), shape.getWidth(), shape.getHeight(), ((Rectangle) shape).color);
+            } else {
+                throw new IllegalArgumentException("Unsupported shape: " + shape.getClass().getName());
+            }
+            if (shape.isSelected()) {
+                selected.set(leaves - 1);
+            }
+        }
+
+        public GroupView root() {
+            return new GroupView(0);
+        }
+
+        public int size() {
+            return leaves;
+        }
+
+        private void addLeaf(byte kind, int x, int y, int width, int height, Color color) {
+            if (leaves == xs.length) {
+                int capacity = leaves * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+                heights = Arrays.copyOf(heights, capacity);
+                colors = Arrays.copyOf(colors, capacity);
+            }
+            kinds[leaves] = kind;
+            xs[leaves] = x;
+            ys[leaves] = y;
+            widths[leaves] = width;
+            heights[leaves] = height;
+            colors[leaves] = color.getRGB();
+            leaves++;
+        }
+
+        private void newGroup(int parent) {
+            if (groups == groupStart.length) {
+                int capacity = groups * 2;
+                groupStart = Arrays.copyOf(groupStart, capacity);
+                groupEnd = Arrays.copyOf(groupEnd, capacity);
+                groupLast = Arrays.copyOf(groupLast, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                lastChild = Arrays.copyOf(lastChild, capacity);
+            }
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+            }
+            int group = groups++;
+            groupStart[group] = leaves;
+            groupEnd[group] = -1;
+            firstChild[group] = -1;
+            nextSibling[group] = -1;
+            lastChild[group] = -1;
+            if (parent >= 0) {
+                if (lastChild[parent] < 0) {
+                    firstChild[parent] = group;
+                } else {
+                    nextSibling[lastChild[parent]] = group;
+                }
+                lastChild[parent] = group;
+            }
+            open[depth++] = group;
+        }
+
+        private int end(int group) {
+            return groupEnd[group] < 0 ? leaves : groupEnd[group];
+        }
+
+        private int last(int group) {
+            return groupEnd[group] < 0 ? groups - 1 : groupLast[group];
+        }
+
+        private boolean leafContains(int leaf, int x, int y) {
+            return x > xs[leaf] && x < xs[leaf] + widths[leaf] &&
+                    y > ys[leaf] && y < ys[leaf] + heights[leaf];
+        }
+
+        /**
+         * Paints all leaves grouped by color, then the selected ones, then
+         * the outlines of selected groups, so each style is set only once.
+         * Leaves of different styles no longer paint in scene order, which
+         * only shows where they overlap; this suits exports and dense scenes
+         * better than interactive editing.
+         */
+        public void paintByStyle(Graphics graphics) {
+            RenderContext context = new RenderContext(graphics);
+            for (int leaf : styleOrder()) {
+                if (!selected.get(leaf)) {
+                    context.usePlainStyle(colors[leaf]);
+                    drawLeaf(leaf, graphics);
+                }
+            }
+            for (int leaf = selected.nextSetBit(0); leaf >= 0 && leaf < leaves; leaf = selected.nextSetBit(leaf + 1)) {
+                context.useSelectionStyle();
+                drawLeaf(leaf, graphics);
+            }
+            for (int group = groupSelected.nextSetBit(0); group >= 0 && group < groups; group = groupSelected.nextSetBit(group + 1)) {
+                context.useSelectionStyle();
+                paintOutline(group, graphics);
+            }
+        }
+
+        /**
+         * Leaf indices sorted by color, in scene order within a color.
+         * Colors never change after a leaf is added, so this is only rebuilt
+         * when the scene grows.
+         */
+        private int[] styleOrder() {
+            if (styleOrder == null || styleOrder.length != leaves) {
+                long[] keys = new long[leaves];
+                for (int leaf = 0; leaf < leaves; leaf++) {
+                    keys[leaf] = (colors[leaf] & 0xffffffffL) << 31 | leaf;
+                }
+                Arrays.sort(keys);
+                styleOrder = new int[leaves];
+                for (int i = 0; i < leaves; i++) {
+                    styleOrder[i] = (int) (keys[i] & Integer.MAX_VALUE);
+                }
+            }
+            return styleOrder;
+        }
+
+        private void paintGroup(int group, RenderContext context) {
+            Graphics2D graphics = context.graphics();
+            if (groupSelected.get(group)) {
+                context.useSelectionStyle();
+                paintOutline(group, graphics);
+            }
+            int end = end(group);
+            int child = firstChild[group];
+            int leaf = groupStart[group];
+            while (leaf < end || child >= 0) {
+                if (child >= 0 && groupStart[child] == leaf) {
+                    paintGroup(child, context);
+                    leaf = end(child);
+                    child = nextSibling[child];
+                } else if (leaf < end) {
+                    paintLeaf(leaf++, context);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private void paintOutline(int group, Graphics graphics) {
+            GroupView view = new GroupView(group);
+            graphics.drawRect(view.getX() - 1, view.getY() - 1, view.getWidth() + 1, view.getHeight() + 1);
+        }
+
+        private void paintLeaf(int leaf, RenderContext context) {
+            if (selected.get(leaf)) {
+                context.useSelectionStyle();
+            } else {
+                context.usePlainStyle(colors[leaf]);
+            }
+            drawLeaf(leaf, context.graphics());
+        }
+
+        private void drawLeaf(int leaf, Graphics graphics) {
+            if (kinds[leaf] == DOT) {
+                graphics.fillRect(xs[leaf] - 1, ys[leaf] - 1, widths[leaf], heights[leaf]);
+            } else {
+                graphics.drawRect(xs[leaf], ys[leaf], widths[leaf] - 1, heights[leaf] - 1);
+            }
+        }
+
+        /**
+         * View of a single leaf.
+         */
+        class LeafView implements Shape {
+            private final int leaf;
+
+            LeafView(int leaf) {
+                this.leaf = leaf;
+            }
+
+            @Override
+            public int getX() {
+                return xs[leaf];
+            }
+
+            @Override
+            public int getY() {
+                return ys[leaf];
+            }
+
+            @Override
+            public int getWidth() {
+                return widths[leaf];
+            }
+
+            @Override
+            public int getHeight() {
+                return heights[leaf];
+            }
+
+            @Override
+            public void move(int x, int y) {
+                xs[leaf] += x;
+                ys[leaf] += y;
+            }
+
+            @Override
+            public boolean isInsideBounds(int x, int y) {
+                return leafContains(leaf, x, y);
+            }
+
+            @Override
+            public void select() {
+                selected.set(leaf);
+            }
+
+            @Override
+            public void unSelect() {
+                selected.clear(leaf);
+            }
+
+            @Override
+            public boolean isSelected() {
+                return selected.get(leaf);
+            }
+
+            @Override
+            public void paint(Graphics graphics) {
+                paintLeaf(leaf, new RenderContext(graphics));
+            }
+        }
+
+        /**
+         * View of a group. Its direct children are found by walking its leaf
+         * range and skipping over the ranges of its subgroups.
+         */
+        class GroupView implements Shape {
+            private final int group;
+
+            GroupView(int group) {
+                this.group = group;
+            }
+
+            @Override
+            public int getX() {
+                int end = end(group);
+                if (groupStart[group] == end) {
+                    return 0;
+                }
+                int x = Integer.MAX_VALUE;
+                for (int i = groupStart[group]; i < end; i++) {
+                    x = Math.min(x, xs[i]);
+                }
+                return x;
+            }
+
+            @Override
+            public int getY() {
+                int end = end(group);
+                if (groupStart[group] == end) {
+                    return 0;
+                }
+                int y = Integer.MAX_VALUE;
+                for (int i = groupStart[group]; i < end; i++) {
+                    y = Math.min(y, ys[i]);
+                }
+                return y;
+            }
+
+            @Override
+            public int getWidth() {
+                int end = end(group);
+                int x = getX();
+                int maxWidth = 0;
+                for (int i = groupStart[group]; i < end; i++) {
+                    maxWidth = Math.max(maxWidth, xs[i] - x + widths[i]);
+                }
+                return maxWidth;
+            }
+
+            @Override
+            public int getHeight() {
+                int end = end(group);
+                int y = getY();
+                int maxHeight = 0;
+                for (int i = groupStart[group]; i < end; i++) {
+                    maxHeight = Math.max(maxHeight, ys[i] - y + heights[i]);
+                }
+                return maxHeight;
+            }
+
+            @Override
+            public void move(int x, int y) {
+                int end = end(group);
+                for (int i = groupStart[group]; i < end; i++) {
+                    xs[i] += x;
+                    ys[i] += y;
+                }
+            }
+
+            @Override
+            public boolean isInsideBounds(int x, int y) {
+                int end = end(group);
+                for (int i = groupStart[group]; i < end; i++) {
+                    if (leafContains(i, x, y)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public void select() {
+                groupSelected.set(group);
+            }
+
+            @Override
+            public void unSelect() {
+                groupSelected.clear(group, last(group) + 1);
+                selected.clear(groupStart[group], end(group));
+            }
+
+            @Override
+            public boolean isSelected() {
+                return groupSelected.get(group);
+            }
+
+            /**
+             * Returns the first direct child, in paint order, that contains
+             * the point.
+             */
+            public Shape getChildAt(int x, int y) {
+                int end = end(group);
+                int child = firstChild[group];
+                int leaf = groupStart[group];
+                while (leaf < end || child >= 0) {
+                    if (child >= 0 && groupStart[child] == leaf) {
+                        GroupView view = new GroupView(child);
+                        if (view.isInsideBounds(x, y)) {
+                            return view;
+                        }
+                        leaf = end(child);
+                        child = nextSibling[child];
+                    } else if (leaf < end) {
+                        if (leafContains(leaf, x, y)) {
+                            return new LeafView(leaf);
+                        }
+                        leaf++;
+                    } else {
+                        break;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void paint(Graphics graphics) {
+                paintGroup(group, new RenderContext(graphics));
+            }
+        }
+    }
+
+
+    /**
+     * Memory per dot and the cost of moving one big group, objects against
+     * the packed scene.
+     */
+    public class PackedSceneBenchmark {
+        public static void main(String[] args) {
+            Composite composite = new Composite();
+            int count = 1_000_000;
+            Random random = new Random(37);
+
+            long before = usedMemory();
+            CompoundShape objects = composite.new CompoundShape();
+            for (int i = 0; i < count; i++) {
+                objects.add(composite.new Dot(random.nextInt(10_000), random.nextInt(10_000), Color.BLACK));
+            }
+            long objectBytes = usedMemory() - before;
+
+            before = usedMemory();
+            PackedScene packed = composite.new PackedScene();
+            packed.beginGroup();
+            for (int i = 0; i < count; i++) {
+                packed.addDot(random.nextInt(10_000), random.nextInt(10_000), Color.BLACK);
+            }
+            packed.endGroup();
+            long packedBytes = usedMemory() - before;
+            Shape packedRoot = packed.root();
+
+            int moves = 100;
+            for (int warmup = 0; warmup < 2; warmup++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < moves; i++) {
+                    objects.move(1, -1);
+                }
+                long objectMove = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < moves; i++) {
+                    packedRoot.move(1, -1);
+                }
+                long packedMove = System.nanoTime() - start;
+                if (warmup == 1) {
+                    System.out.printf("objects: %.1f bytes/dot, move %.2f ms%n",
+                            (double) objectBytes / count, objectMove / 1e6 / moves);
+                    System.out.printf("packed:  %.1f bytes/dot, move %.2f ms%n",
+                            (double) packedBytes / count, packedMove / 1e6 / moves);
+                }
+            }
+        }
+
+        private static long usedMemory() {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+
+    /**
+     * Bounds queries on trees with 4 children per compound, up to 10 levels
+     * and about 1M leaves, against the old recursive computation.
+     */
+    public class BoundsBenchmark {
+        public static void main(String[] args) {
+            Composite composite = new Composite();
+            Random random = new Random(10);
+
+            List<Shape> leaves = new ArrayList<>();
+            CompoundShape tree = null;
+            for (int depth = 4; depth <= 10; depth++) {
+                leaves.clear();
+                tree = composite.tree(depth, random, leaves);
+                long start = System.nanoTime();
+                int width = legacyWidth(tree);
+                long legacy = System.nanoTime() - start;
+                start = System.nanoTime();
+                tree.getWidth();
+                long cold = System.nanoTime() - start;
+                System.out.printf("depth %2d, %,9d leaves: recursive %.3f ms, cached (cold) %.3f ms, width %d/%d%n",
+                        depth, leaves.size(), legacy / 1e6, cold / 1e6, width, tree.getWidth());
+            }
+
+            int queries = 100_000;
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < queries; i++) {
+                sum += tree.getX() + tree.getWidth();
+            }
+            long warm = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                leaves.get(random.nextInt(leaves.size())).move(1, 1);
+                sum += tree.getWidth();
+            }
+            long afterMove = System.nanoTime() - start;
+
+            System.out.printf("depth 10: cached %.1f ns/query, move leaf + query %.1f ns (%d)%n",
+                    (double) warm / queries, (double) afterMove / queries, sum % 10);
+        }
+
+        /**
+         * The bounds computation CompoundShape used before caching.
+         */
+        private static int legacyX(Shape shape) {
+            if (!(shape instanceof CompoundShape)) {
+                return shape.getX();
+            }
+            List<Shape> children = ((CompoundShape) shape).children;
+            if (children.size() == 0) {
+                return 0;
+            }
+            int x = legacyX(children.get(0));
+            for (Shape child : children) {
+                if (legacyX(child) < x) {
+                    x = legacyX(child);
+                }
+            }
+            return x;
+        }
+
+        private static int legacyWidth(Shape shape) {
+            if (!(shape instanceof CompoundShape)) {
+                return shape.getWidth();
+            }
+            int maxWidth = 0;
+            int x = legacyX(shape);
+            for (Shape child : ((CompoundShape) shape).children) {
+                int childWidth = legacyX(child) - x + legacyWidth(child);
+                if (childWidth > maxWidth) {
+                    maxWidth = childWidth;
+                }
+            }
+            return maxWidth;
+        }
+    }
+
+    /**
+     * Bytes allocated and time per frame painting 100k dots in 8 colors,
+     * with the old per-shape stroke allocation, the object tree and the
+     * packed scene in scene order and grouped by style.
+     */
+    public class RenderBenchmark {
+        public static void main(String[] args) {
+            Composite composite = new Composite();
+            Random random = new Random(39);
+            Color[] palette = {Color.BLACK, Color.RED, Color.GREEN, Color.BLUE,
+                    Color.ORANGE, Color.MAGENTA, Color.CYAN, Color.PINK};
+            CompoundShape scene = composite.new CompoundShape();
+            for (int g = 0; g < 100; g++) {
+                CompoundShape group = composite.new CompoundShape();
+                for (int i = 0; i < 1000; i++) {
+                    Dot dot = composite.new Dot(random.nextInt(2000), random.nextInt(2000),
+                            palette[random.nextInt(palette.length)]);
+                    if (random.nextInt(100) == 0) {
+                        dot.select();
+                    }
+                    group.add(dot);
+                }
+                scene.add(group);
+            }
+            PackedScene packed = composite.new PackedScene();
+            for (Shape group : scene.children) {
+                packed.add(group);
+            }
+
+            java.awt.image.BufferedImage image =
+                    new java.awt.image.BufferedImage(2000, 2000, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = image.createGraphics();
+            for (int round = 0; round < 3; round++) {
+                measure("legacy strokes", () -> {
+                    for (Shape group : scene.children) {
+                        for (Shape dot : ((CompoundShape) group).children) {
+                            legacyPaint((Dot) dot, graphics);
+                        }
+                    }
+                });
+                measure("object tree", () -> scene.paint(graphics));
+                measure("packed", () -> packed.root().paint(graphics));
+                measure("packed by style", () -> packed.paintByStyle(graphics));
+            }
+        }
+
+        private static void measure(String name, Runnable frame) {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            int frames = 10;
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                frame.run();
+            }
+            long time = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+            System.out.printf("%-16s %10.1f KB/frame %8.2f ms/frame%n",
+                    name, bytes / 1024.0 / frames, time / 1e6 / frames);
+        }
+
+        /**
+         * Dot painting as it was before strokes were shared.
+         */
+        private static void legacyPaint(Dot dot, Graphics graphics) {
+            Graphics2D g2 = (Graphics2D) graphics;
+            if (dot.isSelected()) {
+                graphics.setColor(Color.LIGHT_GRAY);
+                float[] dash1 = {2.0f};
+                g2.setStroke(new BasicStroke(1.0f,
+                        BasicStroke.CAP_BUTT,
+                        BasicStroke.JOIN_MITER,
+                        2.0f, dash1, 0.0f));
+            } else {
+                graphics.setColor(dot.color);
+                g2.setStroke(new BasicStroke());
+            }
+            graphics.fillRect(dot.x - 1, dot.y - 1, dot.getWidth(), dot.getHeight());
+        }
+    }
+
+
+    /**
+     * Bulk operations on a wide scene (1000 groups of 1000 dots), fork/join
+     * traversal against a plain loop over the same children.
+     */
+    public class BulkOpsBenchmark {
+        public static void main(String[] args) {
+            Composite composite = new Composite();
+            Random random = new Random(38);
+            CompoundShape scene = composite.new CompoundShape();
+            for (int g = 0; g < 1000; g++) {
+                CompoundShape group = composite.new CompoundShape();
+                for (int i = 0; i < 1000; i++) {
+                    group.add(composite.new Dot(random.nextInt(100_000), random.nextInt(100_000), Color.BLACK));
+                }
+                scene.add(group);
+            }
+            System.out.printf("%d processors%n", Runtime.getRuntime().availableProcessors());
+
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (Shape group : scene.children) {
+                    for (Shape dot : ((CompoundShape) group).children) {
+                        ((BaseShape) dot).color = Color.RED;
+                    }
+                }
+                long loop = System.nanoTime() - start;
+                start = System.nanoTime();
+                scene.recolor(Color.BLUE);
+                long recolor = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                scene.move(1, 1);
+                long move = System.nanoTime() - start;
+                start = System.nanoTime();
+                scene.selectIn(new java.awt.Rectangle(0, 0, 50_000, 50_000));
+                long select = System.nanoTime() - start;
+                start = System.nanoTime();
+                scene.unSelect();
+                long unSelect = System.nanoTime() - start;
+
+                for (Shape group : scene.children) {
+                    ((CompoundShape) group).invalidateBounds();
+                }
+                start = System.nanoTime();
+                int width = scene.getWidth();
+                long bounds = System.nanoTime() - start;
+
+                System.out.printf("recolor loop %.1f ms, fork/join %.1f ms; move %.1f ms; selectIn %.1f ms; "
+                        + "unSelect %.1f ms; bounds %.1f ms (width %d)%n",
+                        loop / 1e6, recolor / 1e6, move / 1e6, select / 1e6,
+                        unSelect / 1e6, bounds / 1e6, width);
+            }
+        }
+    }
+
+    /**
+     * Builds a tree with 4 children per compound and dots at the bottom.
+     */
+    CompoundShape tree(int depth, Random random, List<Shape> leaves) {
+        CompoundShape compound = new CompoundShape();
+        for (int i = 0; i < 4; i++) {
+            if (depth == 1) {
+                Dot dot = new Dot(random.nextInt(10_000), random.nextInt(10_000), Color.BLACK);
+                leaves.add(dot);
+                compound.add(dot);
+            } else {
+                compound.add(tree(depth - 1, random, leaves));
+            }
+        }
+        return compound;
+    }
+
+
+    /**
+     * Compares linear hit-testing with the grid at several scene sizes.
+     */
+    public class HitTestBenchmark {
+        public static void main(String[] args) {
+            Composite composite = new Composite();
+            for (int size : new int[] {1_000, 100_000, 1_000_000}) {
+                Random random = new Random(size);
+                int extent = (int) Math.sqrt(size) * 20;
+                CompoundShape scene = composite.new CompoundShape();
+                for (int i = 0; i < size; i++) {
+                    int x = random.nextInt(extent);
+                    int y = random.nextInt(extent);
+                    if (i % 2 == 0) {
+                        scene.add(composite.new Dot(x, y, Color.BLACK));
+                    } else {
+                        scene.add(composite.new Rectangle(x, y, 5 + random.nextInt(30), 5 + random.nextInt(30), Color.BLACK));
+                    }
+                }
+                int[] points = new int[2000];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = random.nextInt(extent);
+                }
+
+                int clicks = size >= 1_000_000 ? 50 : 500;
+                long start = System.nanoTime();
+                int linearHits = 0;
+                for (int i = 0; i < clicks; i++) {
+                    int x = points[(2 * i) % points.length];
+                    int y = points[(2 * i + 1) % points.length];
+                    for (Shape child : scene.children) {
+                        if (child.isInsideBounds(x, y)) {
+                            linearHits++;
+                            break;
+                        }
+                    }
+                }
+                long linear = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                scene.getChildAt(0, 0);
+                long build = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int gridHits = 0;
+                for (int i = 0; i < clicks; i++) {
+                    int x = points[(2 * i) % points.length];
+                    int y = points[(2 * i + 1) % points.length];
+                    if (scene.getChildAt(x, y) != null) {
+                        gridHits++;
+                    }
+                }
+                long indexed = System.nanoTime() - start;
+
+                System.out.printf("%,9d shapes: linear %.4f ms/click, grid %.4f ms/click (built in %.1f ms), hits %d/%d%n",
+                        size, linear / 1e6 / clicks, indexed / 1e6 / clicks, build / 1e6, linearHits, gridHits);
+            }
+        }
+    }
+
+
+    /**
+     * Rasterizes a scene in square tiles on a pool of worker threads and
+     * keeps the tiles between frames, so a repaint only redraws the tiles
+     * that were invalidated. Needs no window, so it also exports scenes too
+     * large to paint in one go on the EDT. The cache holds at most
+     * cacheBytes of tiles and drops the least recently painted ones first.
+     */
+    public class TileRenderer {
+        static final int TILE_SIZE = 256;
+        static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4L;
+        static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+        private final CompoundShape scene;
+        private final ExecutorService workers;
+        private final Map<Long, java.awt.image.BufferedImage> tiles;
+        private final Set<Long> stale = new HashSet<>();
+
+        public TileRenderer(CompoundShape scene, int threads) {
+            this(scene, threads, DEFAULT_CACHE_BYTES);
+        }
+
+        public TileRenderer(CompoundShape scene, int threads, long cacheBytes) {
+            this.scene = scene;
+            long maxTiles = Math.max(1, cacheBytes / TILE_BYTES);
+            this.tiles = new LinkedHashMap<Long, java.awt.image.BufferedImage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, java.awt.image.BufferedImage> eldest) {
+                    if (size() <= maxTiles) {
+                        return false;
+                    }
+                    stale.remove(eldest.getKey());
+                    return true;
+                }
+            };
+            this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "tile-renderer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        public void invalidate(java.awt.Rectangle area) {
+            for (long key : tiles.keySet()) {
+                if (area.intersects(tileX(key) * TILE_SIZE, tileY(key) * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+                    stale.add(key);
+                }
+            }
+        }
+
+        public void invalidateAll() {
+            stale.addAll(tiles.keySet());
+        }
+
+        /**
+         * Brings the tiles covering the area up to date and draws them.
+         */
+        public void paint(Graphics graphics, java.awt.Rectangle area) {
+            List<Callable<Void>> jobs = new ArrayList<>();
+            List<Long> keys = new ArrayList<>();
+            // Holds on to this frame's tiles, the cache may evict some of them
+            // when the area is larger than its budget.
+            List<java.awt.image.BufferedImage> images = new ArrayList<>();
+            for (int tx = Math.floorDiv(area.x, TILE_SIZE); tx <= Math.floorDiv(area.x + area.width - 1, TILE_SIZE); tx++) {
+                for (int ty = Math.floorDiv(area.y, TILE_SIZE); ty <= Math.floorDiv(area.y + area.height - 1, TILE_SIZE); ty++) {
+                    long key = key(tx, ty);
+                    java.awt.image.BufferedImage tile = tiles.get(key);
+                    if (tile == null) {
+                        tile = new java.awt.image.BufferedImage(TILE_SIZE, TILE_SIZE, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+                        tiles.put(key, tile);
+                        stale.add(key);
+                    }
+                    if (stale.remove(key)) {
+                        java.awt.image.BufferedImage target = tile;
+                        int x = tx * TILE_SIZE;
+                        int y = ty * TILE_SIZE;
+                        jobs.add(() -> {
+                            render(target, x, y);
+                            return null;
+                        });
+                    }
+                    keys.add(key);
+                    images.add(tile);
+                }
+            }
+            run(jobs);
+            for (int i = 0; i < keys.size(); i++) {
+                long key = keys.get(i);
+                graphics.drawImage(images.get(i), tileX(key) * TILE_SIZE, tileY(key) * TILE_SIZE, null);
+            }
+        }
+
+        /**
+         * Renders the area straight into one image, tile by tile in
+         * parallel, bypassing the cache, and writes it as a PNG.
+         */
+        public void export(java.awt.Rectangle area, java.io.File file) throws java.io.IOException {
+            java.awt.image.BufferedImage image =
+                    new java.awt.image.BufferedImage(area.width, area.height, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+            List<Callable<Void>> jobs = new ArrayList<>();
+            for (int x = 0; x < area.width; x += TILE_SIZE) {
+                for (int y = 0; y < area.height; y += TILE_SIZE) {
+                    // Sub-images share the raster, so each worker fills its own part.
+                    java.awt.image.BufferedImage part = image.getSubimage(x, y,
+                            Math.min(TILE_SIZE, area.width - x), Math.min(TILE_SIZE, area.height - y));
+                    int sceneX = area.x + x;
+                    int sceneY = area.y + y;
+                    jobs.add(() -> {
+                        render(part, sceneX, sceneY);
+                        return null;
+                    });
+                }
+            }
+            run(jobs);
+            javax.imageio.ImageIO.write(image, "png", file);
+        }
+
+        public void close() {
+            workers.shutdown();
+        }
+
+        private void run(List<Callable<Void>> jobs) {
+            if (jobs.isEmpty()) {
+                return;
+            }
+            scene.prepareForPaint();
+            try {
+                for (Future<Void> done : workers.invokeAll(jobs)) {
+                    done.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Tile rendering failed", e.getCause());
+            }
+        }
+
+        private void render(java.awt.image.BufferedImage tile, int x, int y) {
+            Graphics2D graphics = tile.createGraphics();
+            graphics.setComposite(AlphaComposite.Clear);
+            graphics.fillRect(0, 0, tile.getWidth(), tile.getHeight());
+            graphics.setComposite(AlphaComposite.SrcOver);
+            graphics.translate(-x, -y);
+            graphics.clipRect(x, y, tile.getWidth(), tile.getHeight());
+            scene.paint(graphics);
+            graphics.dispose();
+        }
+
+        private long key(int tx, int ty) {
+            return ((long) tx << 32) | (ty & 0xffffffffL);
+        }
+
+        private int tileX(long key) {
+            return (int) (key >> 32);
+        }
+
+        private int tileY(long key) {
+            return (int) key;
+        }
+    }
+
+    /**
+     * Exports a scene of 1M shapes to a PNG headlessly with one worker and
+     * with one per processor.
+     */
+    public class TileExportBenchmark {
+        public static void main(String[] args) throws java.io.IOException {
+            System.setProperty("java.awt.headless", "true");
+            Composite composite = new Composite();
+            Random random = new Random(40);
+            CompoundShape scene = composite.new CompoundShape();
+            for (int g = 0; g < 1000; g++) {
+                CompoundShape group = composite.new CompoundShape();
+                int x = random.nextInt(3900);
+                int y = random.nextInt(3900);
+                for (int i = 0; i < 1000; i++) {
+                    group.add(composite.new Dot(x + random.nextInt(100), y + random.nextInt(100),
+                            new Color(random.nextInt(0xffffff))));
+                }
+                scene.add(group);
+            }
+            java.awt.Rectangle area = new java.awt.Rectangle(0, 0, 4000, 4000);
+            java.io.File file = java.io.File.createTempFile("scene", ".png");
+            file.deleteOnExit();
+            for (int threads : new int[] {1, Runtime.getRuntime().availableProcessors()}) {
+                TileRenderer renderer = composite.new TileRenderer(scene, threads);
+                for (int round = 0; round < 2; round++) {
+                    long start = System.nanoTime();
+                    renderer.export(area, file);
+                    System.out.printf("%d thread(s): exported %dx%d in %.0f ms (%,d bytes)%n",
+                            threads, area.width, area.height, (System.nanoTime() - start) / 1e6, file.length());
+                }
+                renderer.close();
+            }
+        }
     }
 
 
 public class ImageEditor {
     private EditorCanvas canvas;
     private CompoundShape allShapes = new CompoundShape();
+    private TileRenderer tiles = new TileRenderer(allShapes, Runtime.getRuntime().availableProcessors());
 
     public ImageEditor() {
         canvas = new EditorCanvas();
@@ -339,6 +1857,7 @@ public class ImageEditor {
     public void loadShapes(Shape... shapes) {
         allShapes.clear();
         allShapes.add(shapes);
+        tiles.invalidateAll();
         canvas.refresh();
     }
 
@@ -347,19 +1866,39 @@ public class ImageEditor {
 
         private static final int PADDING = 10;
 
+        private Shape selected;
+
         EditorCanvas() {
             createFrame();
             refresh();
             addMouseListener(new MouseAdapter() {
                 @Override
                 public void mousePressed(MouseEvent e) {
+                    // Only the old and the new selection outlines change.
+                    java.awt.Rectangle dirty = outline(selected);
                     allShapes.unSelect();
-                    allShapes.selectChildAt(e.getX(), e.getY());
-                    e.getComponent().repaint();
+                    selected = allShapes.getChildAt(e.getX(), e.getY());
+                    if (selected != null) {
+                        selected.select();
+                    }
+                    java.awt.Rectangle added = outline(selected);
+                    dirty = dirty == null ? added : added == null ? dirty : dirty.union(added);
+                    if (dirty != null) {
+                        tiles.invalidate(dirty);
+                        e.getComponent().repaint(dirty.x, dirty.y, dirty.width, dirty.height);
+                    }
                 }
             });
         }
 
+        private java.awt.Rectangle outline(Shape shape) {
+            if (shape == null) {
+                return null;
+            }
+            return new java.awt.Rectangle(shape.getX() - 2, shape.getY() - 2,
+                    shape.getWidth() + 4, shape.getHeight() + 4);
+        }
+
         void createFrame() {
             frame = new JFrame();
             frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
@@ -388,8 +1927,13 @@ public class ImageEditor {
             frame.pack();
         }
 
+        /**
+         * Draws the cached tiles under the damaged area, rendering the ones
+         * a selection change invalidated on the worker pool first.
+         */
         public void paint(Graphics graphics) {
-            allShapes.paint(graphics);
+            java.awt.Rectangle clip = graphics.getClipBounds();
+            tiles.paint(graphics, clip != null ? clip : new java.awt.Rectangle(0, 0, getWidth(), getHeight()));
         }
         }
     }